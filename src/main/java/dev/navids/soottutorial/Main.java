@@ -4,8 +4,12 @@ import dev.navids.soottutorial.android.AndroidClassInjector;
 import dev.navids.soottutorial.android.AndroidLogger;
 import dev.navids.soottutorial.android.AndroidCallgraph;
 import dev.navids.soottutorial.android.AndroidPointsToAnalysis;
+import dev.navids.soottutorial.android.BatchRunner;
+import dev.navids.soottutorial.android.EdgeProfile;
 import dev.navids.soottutorial.basicapi.BasicAPI;
+import dev.navids.soottutorial.callgraph.CallGraphQuery;
 import dev.navids.soottutorial.hellosoot.HelloSoot;
+import dev.navids.soottutorial.intraanalysis.IntraAnalysisDriver;
 import dev.navids.soottutorial.intraanalysis.npanalysis.NPAMain;
 import dev.navids.soottutorial.intraanalysis.usagefinder.UsageFinder;
 
@@ -34,10 +38,21 @@ public class Main {
         else if(args[0].equals("AndroidPTA")) {
             AndroidPointsToAnalysis.main(restOfTheArgs);
         }
+        else if(args[0].equals("BatchRunner")) {
+            BatchRunner.main(restOfTheArgs);
+        }
+        else if(args[0].equals("EdgeProfile")) {
+            EdgeProfile.main(restOfTheArgs);
+        }
+        else if(args[0].equals("CallGraphQuery")) {
+            CallGraphQuery.main(restOfTheArgs);
+        }
         else if(args[0].equals("UsageFinder"))
             UsageFinder.main(restOfTheArgs);
         else if(args[0].equals("NullPointerAnalysis"))
             NPAMain.main(restOfTheArgs);
+        else if(args[0].equals("IntraAnalysisDriver"))
+            IntraAnalysisDriver.main(restOfTheArgs);
         else
             System.err.println("The class '" + args[0] + "' does not exists or does not have a main method.");
     }
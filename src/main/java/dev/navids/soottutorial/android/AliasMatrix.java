@@ -0,0 +1,148 @@
+package dev.navids.soottutorial.android;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import soot.Local;
+import soot.PointsToAnalysis;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.function.BiPredicate;
+
+// The may-alias relation among a list of locals. Each local's allocation sites (from a PointsToCache) are put in a bit
+// set, locals with identical sets are grouped into equivalence classes, and the aliasing is computed between
+// classes: two classes alias if some allocation site is in both. A cell of the matrix is then two array lookups, and
+// rows are printed one at a time instead of being built with string concatenation.
+public class AliasMatrix {
+    private final int size;
+    // classOf[i] is the equivalence class of the i-th local
+    private final int[] classOf;
+    // classAliases[c] is the set of classes that may alias class c
+    private final BitSet[] classAliases;
+
+    public AliasMatrix(List<Local> locals, PointsToAnalysis pointsToAnalysis) {
+        this(locals, new PointsToCache(pointsToAnalysis));
+    }
+
+    public AliasMatrix(List<Local> locals, PointsToCache pointsToCache) {
+        // Points-to sets that are not Spark's (e.g. of DumbPointerAnalysis) have no allocation sites, so they are
+        // compared with hasNonEmptyIntersection
+        this(getAllocSites(locals, pointsToCache), (left, right) ->
+                pointsToCache.reachingObjects(locals.get(left)).hasNonEmptyIntersection(pointsToCache.reachingObjects(locals.get(right))));
+    }
+
+    // allocSites.get(i) holds the allocation site numbers of the i-th local, or null if they are unknown, in which case
+    // the local is assumed to alias every local
+    public AliasMatrix(List<int[]> allocSites) {
+        this(allocSites, (left, right) -> true);
+    }
+
+    private AliasMatrix(List<int[]> allocSiteArrays, BiPredicate<Integer, Integer> unknownMayAlias) {
+        size = allocSiteArrays.size();
+        classOf = new int[size];
+        Map<BitSet, Integer> allocSitesToClass = new HashMap<>();
+        List<BitSet> classAllocSites = new ArrayList<>();
+        // Each local without allocation sites forms its own class, represented by that local
+        List<Integer> classRepresentatives = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            BitSet allocSites = allocSiteArrays.get(i) == null ? null : toBitSet(allocSiteArrays.get(i));
+            Integer equivalenceClass = allocSites == null ? null : allocSitesToClass.get(allocSites);
+            if (equivalenceClass == null) {
+                equivalenceClass = classAllocSites.size();
+                classAllocSites.add(allocSites);
+                classRepresentatives.add(i);
+                if (allocSites != null)
+                    allocSitesToClass.put(allocSites, equivalenceClass);
+            }
+            classOf[i] = equivalenceClass;
+        }
+        classAliases = computeClassAliases(classAllocSites, classRepresentatives, unknownMayAlias);
+    }
+
+    private static List<int[]> getAllocSites(List<Local> locals, PointsToCache pointsToCache) {
+        List<int[]> allocSites = new ArrayList<>(locals.size());
+        for (Local local : locals)
+            allocSites.add(pointsToCache.allocSites(local));
+        return allocSites;
+    }
+
+    private static BitSet toBitSet(int[] allocSiteArray) {
+        BitSet allocSites = new BitSet();
+        for (int allocSite : allocSiteArray)
+            allocSites.set(allocSite);
+        return allocSites;
+    }
+
+    private static BitSet[] computeClassAliases(List<BitSet> classAllocSites, List<Integer> classRepresentatives,
+                                                BiPredicate<Integer, Integer> unknownMayAlias) {
+        int classCount = classAllocSites.size();
+        BitSet[] classAliases = new BitSet[classCount];
+        // An inverted index from allocation sites to the classes that contain them, so each class's aliases are the
+        // union of the entries of its allocation sites rather than a comparison with every other class
+        TIntObjectHashMap<BitSet> allocSiteToClasses = new TIntObjectHashMap<>();
+        for (int c = 0; c < classCount; c++) {
+            BitSet allocSites = classAllocSites.get(c);
+            if (allocSites == null)
+                continue;
+            for (int allocSite = allocSites.nextSetBit(0); allocSite >= 0; allocSite = allocSites.nextSetBit(allocSite + 1)) {
+                BitSet classes = allocSiteToClasses.get(allocSite);
+                if (classes == null) {
+                    classes = new BitSet(classCount);
+                    allocSiteToClasses.put(allocSite, classes);
+                }
+                classes.set(c);
+            }
+        }
+        for (int c = 0; c < classCount; c++) {
+            classAliases[c] = new BitSet(classCount);
+            BitSet allocSites = classAllocSites.get(c);
+            if (allocSites == null)
+                continue;
+            for (int allocSite = allocSites.nextSetBit(0); allocSite >= 0; allocSite = allocSites.nextSetBit(allocSite + 1))
+                classAliases[c].or(allocSiteToClasses.get(allocSite));
+        }
+        for (int c = 0; c < classCount; c++) {
+            if (classAllocSites.get(c) != null)
+                continue;
+            for (int other = 0; other < classCount; other++) {
+                if (unknownMayAlias.test(classRepresentatives.get(c), classRepresentatives.get(other))) {
+                    classAliases[c].set(other);
+                    classAliases[other].set(c);
+                }
+            }
+        }
+        return classAliases;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getClassCount() {
+        return classAliases.length;
+    }
+
+    public int getEquivalenceClass(int local) {
+        return classOf[local];
+    }
+
+    public boolean mayAlias(int leftLocal, int rightLocal) {
+        return classAliases[classOf[leftLocal]].get(classOf[rightLocal]);
+    }
+
+    // Prints the header and one line per local, with 1 in the columns of the locals it may alias and 0 elsewhere;
+    // locals are numbered from 1
+    public void print(PrintStream out) {
+        StringBuilder line = new StringBuilder("\t");
+        for (int i = 0; i < size; i++)
+            line.append(i + 1).append('\t');
+        out.println(line);
+        for (int i = 0; i < size; i++) {
+            line.setLength(0);
+            line.append(i + 1).append('\t');
+            BitSet aliases = classAliases[classOf[i]];
+            for (int j = 0; j < size; j++)
+                line.append(aliases.get(classOf[j]) ? '1' : '0').append('\t');
+            out.println(line);
+        }
+    }
+}
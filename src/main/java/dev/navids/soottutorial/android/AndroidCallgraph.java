@@ -1,5 +1,10 @@
 package dev.navids.soottutorial.android;
 
+import dev.navids.soottutorial.callgraph.CallGraphFile;
+import dev.navids.soottutorial.callgraph.CallGraphIndex;
+import dev.navids.soottutorial.callgraph.CallGraphQuery;
+import dev.navids.soottutorial.callgraph.CallGraphWriter;
+import dev.navids.soottutorial.callgraph.MultiReachability;
 import dev.navids.soottutorial.visual.AndroidCallGraphFilter;
 import dev.navids.soottutorial.visual.Visualizer;
 import soot.Scene;
@@ -12,6 +17,7 @@ import soot.jimple.toolkits.callgraph.CallGraph;
 import soot.jimple.toolkits.callgraph.Edge;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 public class AndroidCallgraph {
@@ -37,6 +43,20 @@ public class AndroidCallgraph {
         boolean drawGraph = false;
         if (args.length > 1 && args[1].equals("draw"))
             drawGraph = true;
+        // The callgraph can also be saved for offline queries
+        File exportFile = null;
+        // With a snapshot directory, the setup of a previous run on the same APK is reused
+        File snapshotRoot = null;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--export"))
+                exportFile = new File(args[i + 1]);
+            if (args[i].equals("--snapshot"))
+                snapshotRoot = new File(args[i + 1]);
+        }
+        if (snapshotRoot != null) {
+            snapshotReachability(snapshotRoot, cgAlgorithm);
+            return;
+        }
         // Setup FlowDroid
         final InfoflowAndroidConfiguration config = AndroidUtil.getFlowDroidConfig(apkPath, androidJar, cgAlgorithm);
         SetupApplication app = new SetupApplication(config);
@@ -70,24 +90,37 @@ public class AndroidCallgraph {
                         + " and it's equal to mainActivityEntryMethod: " + sootMethod.equals(mainActivityEntryMethod));
             }
         }
-        // Perform BFS from the main entrypoint to see if "unreachableMehthod" is reachable at all or not
-        Map<SootMethod, SootMethod> reachableParentMapFromEntryPoint = getAllReachableMethods(app.getDummyMainMethod());
-        if(reachableParentMapFromEntryPoint.containsKey(unreachableMehthod))
-            System.out.println("unreachableMehthod is reachable, a possible path from the entry point: " + getPossiblePath(reachableParentMapFromEntryPoint, unreachableMehthod));
+        // Search backward from "unreachableMehthod" to see if it's reachable from the main entrypoint at all or not; the
+        // search stops as soon as it finds the entrypoint
+        SootMethod dummyMainMethod = app.getDummyMainMethod();
+        List<SootMethod> pathToUnreachableMethod = getCallGraphIndex().findPathFromEntryPoints(
+                Collections.singletonList(unreachableMehthod), Collections.singletonList(dummyMainMethod));
+        if(!pathToUnreachableMethod.isEmpty())
+            System.out.println("unreachableMehthod is reachable, a possible path from the entry point: " + getPossiblePath(pathToUnreachableMethod));
         else
             System.out.println("unreachableMehthod is not reachable from the entrypoint.");
-        // Perform BFS to get all reachable methods from MainActivity's entry point
-        Map<SootMethod, SootMethod> reachableParentMapFromMainActivity = getAllReachableMethods(mainActivityEntryMethod);
-        if(reachableParentMapFromMainActivity.containsKey(childMethod))
-            System.out.println("childMethod is reachable from MainActivity, a possible path: " + getPossiblePath(reachableParentMapFromMainActivity, childMethod));
+        // Check which of the methods are reachable from MainActivity's entry point, all in one traversal
+        MultiReachability reachability = getCallGraphIndex().reachability(Collections.singletonList(mainActivityEntryMethod),
+                Arrays.asList(childMethod, parentMethod));
+        if(reachability.reaches(mainActivityEntryMethod, childMethod))
+            System.out.println("childMethod is reachable from MainActivity, a possible path: " + getPossiblePath(reachability.getWitnessPath(mainActivityEntryMethod, childMethod)));
         else
             System.out.println("childMethod is not reachable from MainActivity.");
-        if(reachableParentMapFromMainActivity.containsKey(parentMethod))
-            System.out.println("parentMethod is reachable from MainActivity, a possible path: " + getPossiblePath(reachableParentMapFromMainActivity, parentMethod));
+        if(reachability.reaches(mainActivityEntryMethod, parentMethod))
+            System.out.println("parentMethod is reachable from MainActivity, a possible path: " + getPossiblePath(reachability.getWitnessPath(mainActivityEntryMethod, parentMethod)));
         else
             System.out.println("parentMethod is not reachable from MainActivity.");
 
 
+        if (exportFile != null) {
+            try {
+                CallGraphWriter.write(callGraph, exportFile);
+                System.out.println("The callgraph is exported to " + exportFile);
+            } catch (IOException e) {
+                AndroidUtil.reportError(e);
+            }
+        }
+
         // Draw a subset of call graph
         if (drawGraph) {
             Visualizer.v().addCallGraph(callGraph,
@@ -97,26 +130,58 @@ public class AndroidCallgraph {
         }
     }
 
+    // The reachability questions of main, answered from a SetupSnapshot by signatures. FlowDroid only runs if there is
+    // no snapshot for the APK yet.
+    static void snapshotReachability(File snapshotRoot, InfoflowConfiguration.CallgraphAlgorithm cgAlgorithm) {
+        try {
+            SetupSnapshot snapshot = SetupSnapshot.getOrCreate(snapshotRoot, apkPath, androidJar, cgAlgorithm);
+            System.out.println((snapshot.isRestored() ? "Restored the snapshot " : "Saved the snapshot ") + snapshot.getDirectory());
+            CallGraphFile callGraphFile = snapshot.getCallGraphFile();
+            CallGraphQuery callGraphQuery = new CallGraphQuery(callGraphFile);
+            System.out.println(String.format("%d entry point classes, %d methods and %d edges in the callgraph",
+                    snapshot.getEntryPointClasses().size(), callGraphFile.methodCount(), callGraphFile.edgeCount()));
+            int dummyMainMethod = callGraphFile.idOf(snapshot.getDummyMainSignature());
+            int unreachableMethod = callGraphFile.idOf(unreachableMethodSignature);
+            int[] pathToUnreachableMethod = dummyMainMethod < 0 || unreachableMethod < 0 ? new int[0] :
+                    callGraphQuery.shortestPath(dummyMainMethod, unreachableMethod);
+            if(pathToUnreachableMethod.length > 0)
+                System.out.println("unreachableMehthod is reachable, a possible path from the entry point: " + callGraphQuery.getPossiblePath(pathToUnreachableMethod));
+            else
+                System.out.println("unreachableMehthod is not reachable from the entrypoint.");
+            int mainActivityEntryMethod = callGraphFile.idOf(mainActivityEntryPointSignature);
+            for (String signature : new String[]{childMethodSignature, parentMethodSignature}) {
+                int method = callGraphFile.idOf(signature);
+                String methodName = CallGraphQuery.getShortName(signature);
+                int[] path = mainActivityEntryMethod < 0 || method < 0 ? new int[0] : callGraphQuery.shortestPath(mainActivityEntryMethod, method);
+                if(path.length > 0)
+                    System.out.println(methodName + " is reachable from MainActivity, a possible path: " + callGraphQuery.getPossiblePath(path));
+                else
+                    System.out.println(methodName + " is not reachable from MainActivity.");
+            }
+        } catch (IOException e) {
+            AndroidUtil.reportError(e);
+        }
+    }
+
+    private static CallGraph indexedCallGraph = null;
+    private static int indexedEdgeCount = -1;
+    private static CallGraphIndex callGraphIndex = null;
+
+    // The index is rebuilt only if the Scene's callgraph is replaced or gets new edges
+    public static CallGraphIndex getCallGraphIndex() {
+        CallGraph callGraph = Scene.v().getCallGraph();
+        if (callGraphIndex == null || indexedCallGraph != callGraph || indexedEdgeCount != callGraph.size()) {
+            callGraphIndex = new CallGraphIndex(callGraph);
+            indexedCallGraph = callGraph;
+            indexedEdgeCount = callGraph.size();
+        }
+        return callGraphIndex;
+    }
+
     // A Breadth-First Search algorithm to get all reachable methods from initialMethod in the callgraph
     // The output is a map from reachable methods to their parents
     public static Map<SootMethod, SootMethod> getAllReachableMethods(SootMethod initialMethod){
-        CallGraph callgraph = Scene.v().getCallGraph();
-        List<SootMethod> queue = new ArrayList<>();
-        queue.add(initialMethod);
-        Map<SootMethod, SootMethod> parentMap = new HashMap<>();
-        parentMap.put(initialMethod, null);
-        for(int i=0; i< queue.size(); i++){
-            SootMethod method = queue.get(i);
-            for (Iterator<Edge> it = callgraph.edgesOutOf(method); it.hasNext(); ) {
-                Edge edge = it.next();
-                SootMethod childMethod = edge.tgt();
-                if(parentMap.containsKey(childMethod))
-                    continue;
-                parentMap.put(childMethod, method);
-                queue.add(childMethod);
-            }
-        }
-        return parentMap;
+        return getCallGraphIndex().reachableFrom(initialMethod).toParentMap();
     }
 
     public static String getPossiblePath(Map<SootMethod, SootMethod> reachableParentMap, SootMethod it) {
@@ -131,4 +196,11 @@ public class AndroidCallgraph {
         } return possiblePath;
     }
 
+    public static String getPossiblePath(List<SootMethod> path) {
+        StringJoiner possiblePath = new StringJoiner(" -> ");
+        for (SootMethod method : path)
+            possiblePath.add(method.getDeclaringClass().getShortName()+"."+method.getName());
+        return possiblePath.toString();
+    }
+
 }
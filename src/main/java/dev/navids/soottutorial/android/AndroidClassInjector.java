@@ -6,6 +6,7 @@ import soot.jimple.Jimple;
 import soot.jimple.JimpleBody;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -18,27 +19,74 @@ public class AndroidClassInjector {
     static String androidDemoPath = System.getProperty("user.dir") + File.separator + "demo" + File.separator + "Android";
     static String apkPath = androidDemoPath + File.separator + "/calc.apk";
     static String outputPath = androidDemoPath + File.separator + "/Instrumented";
+    static InstrumentationOutput output = null;
 
     public static void main(String[] args){
         if(System.getenv().containsKey("ANDROID_HOME"))
             androidJar = System.getenv("ANDROID_HOME")+ File.separator+"platforms";
-        // Clean the outputPath
-        final File[] files = (new File(outputPath)).listFiles();
-        if (files != null && files.length > 0) {
-            Arrays.asList(files).forEach(File::delete);
-        }
+        // Clean the outputPath, or stop if the output of an earlier --incremental run is up to date
+        output = InstrumentationOutput.open(args, "AndroidClassInjector", androidJar, apkPath, outputPath);
+        if (output == null)
+            return;
         // Initialize Soot
         InstrumentUtil.setupSoot(androidJar, apkPath, outputPath);
         // Find the package name of the APK
         String packageName = AndroidUtil.getPackageName(apkPath);
+        if (Arrays.asList(args).contains("counters")) {
+            injectProbeCounters(packageName, args);
+            return;
+        }
+        if (Arrays.asList(args).contains("edges")) {
+            injectEdgeCounters(packageName, args);
+            return;
+        }
+        // With --overhead, only some methods call incrementAndLog, others get a cheap counter or nothing (see
+        // InstrumentationPolicy); the policy is chosen before the class is injected, so its methods are not considered
+        InstrumentationPolicy policy = InstrumentationPolicy.fromArgs(args);
         // Create and inject a class with a field and a method to the APK
         SootMethod incNLogMethod = injectCode(packageName);
         // Add a transformation pack in order to insert incrementAndLog method at top of each method in the app
-        PackManager.v().getPack("jtp").add(
-                new Transform("jtp.myLogger", new StaticMethodCallInjector(incNLogMethod)));
-        PackManager.v().runPacks();
-        PackManager.v().writeOutput();
+        // With --threads or --streaming, the bodies are transformed on a pool instead (see InstrumentationOutput).
+        BodyTransformer transformer = new StaticMethodCallInjector(incNLogMethod);
+        if (policy != null)
+            transformer = policy.getTransformer(transformer, packageName);
+        output.transformAndWrite(transformer, args);
+        if (policy != null) {
+            try {
+                policy.writeDecisions(new File(outputPath));
+            } catch (IOException e) {
+                AndroidUtil.reportError(e);
+            }
+        }
+
+    }
 
+    // The "counters" mode: instead of calling incrementAndLog, each method increments its own slot of a counter array that
+    // is dumped periodically while the app runs (see ProbeCounters). The methods of the dumped ids are listed in probe_methods.tsv.
+    static void injectProbeCounters(String packageName, String[] args) {
+        MethodIdTable methodIdTable = new MethodIdTable(MethodIdTable.getInstrumentableMethods());
+        ProbeCounters probeCounters = new ProbeCounters(packageName, methodIdTable);
+        output.transformAndWrite(probeCounters.getTransformer(), args);
+        try {
+            methodIdTable.writeMapping(new File(outputPath, "probe_methods.tsv"));
+        } catch (IOException e) {
+            AndroidUtil.reportError(e);
+        }
+    }
+
+    // The "edges" mode: counters on the fewest edges of each method's block graph that determine the counts of all its
+    // edges and blocks (see EdgeProfiler). The edges are listed in edge_profile.tsv, which EdgeProfile reads with the log.
+    // The counters are inserted before the packs run, since their ids are assigned to the blocks of the bodies as they are.
+    // All bodies are planned up front, so --streaming doesn't bound the memory of this mode.
+    static void injectEdgeCounters(String packageName, String[] args) {
+        EdgeProfiler edgeProfiler = new EdgeProfiler(MethodIdTable.getInstrumentableMethods());
+        BodyTransformer transformer = edgeProfiler.getTransformer(new ProbeCounters(packageName, edgeProfiler.getCounterCount()));
+        output.transformAndWrite(transformer, Math.max(1, InstrumentUtil.getThreads(args)), StreamingDexWriter.getWindow(args));
+        try {
+            edgeProfiler.writeEdges(new File(outputPath, "edge_profile.tsv"));
+        } catch (IOException e) {
+            AndroidUtil.reportError(e);
+        }
     }
 
     static SootMethod injectCode(String packageName) {
@@ -47,26 +95,32 @@ public class AndroidClassInjector {
         return addIncNLogMethod(staticCounterClass, counterField);
     }
 
+    // Soot transforms the bodies of different classes in parallel, so the references are resolved once here and the
+    // transformer only changes the body it's given
     static class StaticMethodCallInjector extends BodyTransformer{
 
         SootMethod incNLogMethod;
+        private final SootMethodRef incNLogMethodRef;
+        private final SootMethodRef logMethodRef;
         public StaticMethodCallInjector(SootMethod incNLogMethod) {
             super();
             this.incNLogMethod = incNLogMethod;
+            this.incNLogMethodRef = incNLogMethod.makeRef();
+            this.logMethodRef = InstrumentRefs.v().logI;
         }
 
         @Override
         protected void internalTransform(Body b, String s, Map<String, String> map) {
             JimpleBody body = (JimpleBody) b;
             // Check if this method is not the incrementAndLog method and an Android Framework method
-            if(b.getMethod().getSignature().equals(incNLogMethod.getSignature()) || AndroidUtil.isAndroidMethod(b.getMethod()))
+            if(b.getMethod() == incNLogMethod || AndroidUtil.isAndroidMethod(b.getMethod()))
                 return;
             UnitPatchingChain units = b.getUnits();
             List<Unit> generated = new ArrayList<>();
             // Add a log message to show what method is calling incrementAndLogs
-            generated.addAll(InstrumentUtil.generateLogStmts(body, "Beginning of method " + b.getMethod().getSignature()));
+            generated.addAll(InstrumentUtil.generateLogStmts(body, logMethodRef, "Beginning of method " + b.getMethod().getSignature(), null));
             // Call incrementAndLog method
-            generated.add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(incNLogMethod.makeRef())));
+            generated.add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(incNLogMethodRef)));
             units.insertBefore(generated, body.getFirstNonIdentityStmt());
             b.validate();
         }
@@ -4,6 +4,7 @@ import soot.*;
 import soot.jimple.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -16,54 +17,98 @@ public class AndroidLogger {
     static String androidDemoPath = System.getProperty("user.dir") + File.separator + "demo" + File.separator + "Android";
     static String apkPath = androidDemoPath + File.separator + "/calc.apk";
     static String outputPath = androidDemoPath + File.separator + "/Instrumented";
+    static InstrumentationOutput output = null;
 
 
     public static void main(String[] args){
 
         if(System.getenv().containsKey("ANDROID_HOME"))
             androidJar = System.getenv("ANDROID_HOME")+ File.separator+"platforms";
-        // Clean the outputPath
-        final File[] files = (new File(outputPath)).listFiles();
-        if (files != null && files.length > 0) {
-            Arrays.asList(files).forEach(File::delete);
-        }
+        // Clean the outputPath, or stop if the output of an earlier --incremental run is up to date
+        output = InstrumentationOutput.open(args, "AndroidLogger", androidJar, apkPath, outputPath);
+        if (output == null)
+            return;
         // Initialize Soot
         InstrumentUtil.setupSoot(androidJar, apkPath, outputPath);
-        // Add a transformation pack in order to add the statement "System.out.println(<content>) at the beginning of each Application method
-        PackManager.v().getPack("jtp").add(new Transform("jtp.myLogger", new BodyTransformer() {
-            @Override
-            protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
-                // First we filter out Android framework methods
-                if(AndroidUtil.isAndroidMethod(b.getMethod()))
-                    return;
-                JimpleBody body = (JimpleBody) b;
-                UnitPatchingChain units = b.getUnits();
-                List<Unit> generatedUnits = new ArrayList<>();
+        if (Arrays.asList(args).contains("ring")) {
+            traceToRingBuffer(args);
+            return;
+        }
+        // Add a transformation pack in order to add the statement "System.out.println(<content>) at the beginning of each Application method.
+        // With --threads or --streaming, the bodies are transformed on a pool instead (see InstrumentationOutput).
+        // With --overhead, only some methods get the println, others a cheap counter or nothing (see InstrumentationPolicy)
+        BodyTransformer transformer = new PrintlnInjector();
+        InstrumentationPolicy policy = InstrumentationPolicy.fromArgs(args);
+        if (policy != null)
+            transformer = policy.getTransformer(transformer, AndroidUtil.getPackageName(apkPath));
+        output.transformAndWrite(transformer, args);
+        if (policy != null) {
+            try {
+                policy.writeDecisions(new File(outputPath));
+            } catch (IOException e) {
+                AndroidUtil.reportError(e);
+            }
+        }
+    }
 
-                // The message that we want to log
-                String content = String.format("%s Beginning of method %s", InstrumentUtil.TAG, body.getMethod().getSignature());
-                // In order to call "System.out.println" we need to create a local containing "System.out" value
-                Local psLocal = InstrumentUtil.generateNewLocal(body, RefType.v("java.io.PrintStream"));
-                // Now we assign "System.out" to psLocal
-                SootField sysOutField = Scene.v().getField("<java.lang.System: java.io.PrintStream out>");
-                AssignStmt sysOutAssignStmt = Jimple.v().newAssignStmt(psLocal, Jimple.v().newStaticFieldRef(sysOutField.makeRef()));
-                generatedUnits.add(sysOutAssignStmt);
+    // The "ring" mode: each method records its id in a ring buffer of an injected class, which logs the ids in batches on a
+    // background thread (see RingBufferTracer). The methods of the logged ids are listed in trace_methods.tsv.
+    // --sample <n> records one in n calls of each method, and --budget <n> at most n calls of each method.
+    static void traceToRingBuffer(String[] args) {
+        int capacity = 1 << 16, sampleRate = 1, budget = 0;
+        long flushIntervalMillis = 1000;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--capacity"))
+                capacity = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("--sample"))
+                sampleRate = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("--budget"))
+                budget = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("--flush-interval"))
+                flushIntervalMillis = Long.parseLong(args[i + 1]);
+        }
+        MethodIdTable methodIdTable = new MethodIdTable(MethodIdTable.getInstrumentableMethods());
+        RingBufferTracer tracer = new RingBufferTracer(AndroidUtil.getPackageName(apkPath), methodIdTable,
+                capacity, sampleRate, budget, flushIntervalMillis);
+        output.transformAndWrite(tracer.getTransformer(), args);
+        try {
+            methodIdTable.writeMapping(new File(outputPath, "trace_methods.tsv"));
+        } catch (IOException e) {
+            AndroidUtil.reportError(e);
+        }
+    }
 
-                // Create println method call and provide its parameter
-                SootMethod printlnMethod = Scene.v().grabMethod("<java.io.PrintStream: void println(java.lang.String)>");
-                Value printlnParamter = StringConstant.v(content);
-                InvokeStmt printlnMethodCallStmt = Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(psLocal, printlnMethod.makeRef(), printlnParamter));
-                generatedUnits.add(printlnMethodCallStmt);
+    // Soot transforms the bodies of different classes in parallel, so the transformer only changes the body it's given.
+    // "System.out" and "println" are resolved once (by InstrumentRefs), before any body is transformed.
+    static class PrintlnInjector extends BodyTransformer {
+        private final InstrumentRefs refs = InstrumentRefs.v();
 
-                // Insert the generated statement before the first  non-identity stmt
-                units.insertBefore(generatedUnits, body.getFirstNonIdentityStmt());
-                // Validate the body to ensure that our code injection does not introduce any problem (at least statically)
-                b.validate();
-            }
-        }));
-        // Run Soot packs (note that our transformer pack is added to the phase "jtp")
-        PackManager.v().runPacks();
-        // Write the result of packs in outputPath
-        PackManager.v().writeOutput();
+        @Override
+        protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
+            // First we filter out Android framework methods
+            if(AndroidUtil.isAndroidMethod(b.getMethod()))
+                return;
+            JimpleBody body = (JimpleBody) b;
+            UnitPatchingChain units = b.getUnits();
+            List<Unit> generatedUnits = new ArrayList<>();
+
+            // The message that we want to log
+            String content = String.format("%s Beginning of method %s", InstrumentUtil.TAG, body.getMethod().getSignature());
+            // In order to call "System.out.println" we need to create a local containing "System.out" value
+            Local psLocal = InstrumentUtil.generateNewLocal(body, refs.printStreamType);
+            // Now we assign "System.out" to psLocal
+            AssignStmt sysOutAssignStmt = Jimple.v().newAssignStmt(psLocal, Jimple.v().newStaticFieldRef(refs.systemOut));
+            generatedUnits.add(sysOutAssignStmt);
+
+            // Create println method call and provide its parameter
+            Value printlnParamter = StringConstant.v(content);
+            InvokeStmt printlnMethodCallStmt = Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(psLocal, refs.println, printlnParamter));
+            generatedUnits.add(printlnMethodCallStmt);
+
+            // Insert the generated statement before the first  non-identity stmt
+            units.insertBefore(generatedUnits, body.getFirstNonIdentityStmt());
+            // Validate the body to ensure that our code injection does not introduce any problem (at least statically)
+            b.validate();
+        }
     }
 }
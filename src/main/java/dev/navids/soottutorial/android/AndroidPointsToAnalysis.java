@@ -1,5 +1,7 @@
 package dev.navids.soottutorial.android;
 
+import dev.navids.soottutorial.callgraph.CallGraphQuery;
+import dev.navids.soottutorial.util.SignatureInterner;
 import dev.navids.soottutorial.visual.AndroidCallGraphFilter;
 import dev.navids.soottutorial.visual.Visualizer;
 import org.xmlpull.v1.XmlPullParserException;
@@ -12,10 +14,8 @@ import soot.jimple.infoflow.android.InfoflowAndroidConfiguration;
 import soot.jimple.infoflow.android.SetupApplication;
 import soot.jimple.infoflow.android.axml.AXmlNode;
 import soot.jimple.infoflow.android.manifest.ProcessManifest;
+import soot.jimple.spark.SparkTransformer;
 import soot.jimple.spark.pag.AllocNode;
-import soot.jimple.spark.pag.Node;
-import soot.jimple.spark.sets.DoublePointsToSet;
-import soot.jimple.spark.sets.P2SetVisitor;
 import soot.jimple.toolkits.callgraph.CallGraph;
 import soot.jimple.toolkits.pointer.DumbPointerAnalysis;
 import soot.toolkits.graph.ClassicCompleteUnitGraph;
@@ -27,8 +27,10 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class AndroidPointsToAnalysis {
@@ -40,53 +42,137 @@ public class AndroidPointsToAnalysis {
     static String classChildName = "dev.navids.multicomp1.ClassChild";
     static String intermediaryMethodSignature = "<dev.navids.multicomp1.MyReceiver: void intermediaryMethod()>";
 
+    private static final int classParentType = SignatureInterner.typeKey(classParentName);
+    private static final int classChildType = SignatureInterner.typeKey(classChildName);
+
     static boolean isParentChildClassLocal(Local local){
-        return local.getType().toString().equals(classParentName) || local.getType().toString().equals(classChildName);
+        Type localType = local.getType();
+        SignatureInterner signatureInterner = SignatureInterner.v();
+        return localType == signatureInterner.type(classParentType) || localType == signatureInterner.type(classChildType);
     }
 
+    // The maximum number of locals a demand-driven query visits before it falls back to whole-program Spark
+    static int demandBudget = 5000;
+
     public static void main(String[] args){
+        if (args.length > 0 && args[0].equals("demand")) {
+            demandDrivenAnalysis();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--snapshot")) {
+            snapshotAnalysis(new File(args[1]));
+            return;
+        }
         SetupApplication app = new SetupApplication(AndroidUtil.getFlowDroidConfig(apkPath, androidJar));
         // By constructing call graph, PointsTo analysis implicitly will be executed
         app.constructCallgraph();
-        soot.PointsToAnalysis pointsToAnalysis = Scene.v().getPointsToAnalysis();
+        PointsToCache pointsToCache = PointsToCache.v();
         SootMethod intermediaryMethod = Scene.v().getMethod(intermediaryMethodSignature);
-        for(Local local : intermediaryMethod.getActiveBody().getLocals()){
+        for(Map.Entry<Local, int[]> localAllocSites : pointsToCache.allocSites(intermediaryMethod).entrySet()){
+            Local local = localAllocSites.getKey();
             if(isParentChildClassLocal(local)){
-                ((DoublePointsToSet)pointsToAnalysis.reachingObjects(local)).getOldSet().forall(new P2SetVisitor() {
-                    @Override
-                    public void visit(Node n) {
-                        AllocNode allocNode = (AllocNode) n;
-                        SootMethod allocMethod = allocNode.getMethod();
-                        NewExpr allocExpr = (NewExpr) allocNode.getNewExpr();
-                        System.out.println(String.format("Local %s in intermediaryMethod is allocated at method %s through expression: %s", local, allocMethod, allocExpr));
-                    }
-                });
+                for(int allocSite : localAllocSites.getValue()){
+                    AllocNode allocNode = pointsToCache.getAllocNode(allocSite);
+                    SootMethod allocMethod = allocNode.getMethod();
+                    NewExpr allocExpr = (NewExpr) allocNode.getNewExpr();
+                    System.out.println(String.format("Local %s in intermediaryMethod is allocated at method %s through expression: %s", local, allocMethod, allocExpr));
+                }
             }
         }
         System.out.println("----------");
 
         // Reporting aliases relation among all local values with type ClassParent or ClassChild
         List<Pair<Local, String>> allParentChildLocals = getParentChildClassLocals();
-        String header = "\t";
+        List<Local> locals = new ArrayList<>();
         for(int i=0; i< allParentChildLocals.size(); i++) {
             System.out.println(String.format("Local %d: %s", i + 1, allParentChildLocals.get(i).getO2()));
-            header += (i+1)+"\t";
+            locals.add(allParentChildLocals.get(i).getO1());
         }
         System.out.println("----------");
         System.out.println("Aliases (1 -> the locals on row and column MAY points to the same memory location, 0 -> otherwise)");
-        System.out.println(header);
-        for(int i=0; i< allParentChildLocals.size(); i++){
-            Local leftLocal = allParentChildLocals.get(i).getO1();
-            String row = (i+1) + "\t";
-            PointsToSet leftSet = pointsToAnalysis.reachingObjects(leftLocal);
-            for(int j=0; j< allParentChildLocals.size(); j++) {
-                Local rightLocal = allParentChildLocals.get(j).getO1();
-                PointsToSet rightSet = pointsToAnalysis.reachingObjects(rightLocal);
-                row += (leftSet.hasNonEmptyIntersection(rightSet)? "1" : "0") +"\t";
+        new AliasMatrix(locals, pointsToCache).print(System.out);
+    }
+
+    // The same report, but the callgraph is built with CHA (no whole-program points-to analysis), and only the points-to
+    // sets of the queried locals are computed. Spark runs only if one of the queries cannot be answered on demand.
+    static void demandDrivenAnalysis(){
+        SetupApplication app = new SetupApplication(AndroidUtil.getFlowDroidConfig(apkPath, androidJar, InfoflowConfiguration.CallgraphAlgorithm.CHA));
+        app.constructCallgraph();
+        DemandPointsTo demandPointsTo = new DemandPointsTo(demandBudget, () -> {
+            System.out.println("Running Spark for the queries that could not be answered on demand...");
+            runSpark();
+            return PointsToCache.v();
+        });
+        SootMethod intermediaryMethod = Scene.v().getMethod(intermediaryMethodSignature);
+        for(Local local : intermediaryMethod.getActiveBody().getLocals()){
+            if(!isParentChildClassLocal(local))
+                continue;
+            int[] allocSites = demandPointsTo.allocSites(intermediaryMethod, local);
+            if(allocSites == null) {
+                System.out.println(String.format("The allocation sites of local %s in intermediaryMethod are unknown", local));
+                continue;
             }
-            System.out.println(row);
+            for(int allocSite : allocSites){
+                Pair<SootMethod, Object> allocMethodAndExpr = demandPointsTo.getAllocSite(allocSite);
+                System.out.println(String.format("Local %s in intermediaryMethod is allocated at method %s through expression: %s", local, allocMethodAndExpr.getO1(), allocMethodAndExpr.getO2()));
+            }
+        }
+        System.out.println("----------");
+        List<Pair<Local, String>> allParentChildLocals = getParentChildClassLocals();
+        List<int[]> allocSites = new ArrayList<>();
+        for(int i=0; i< allParentChildLocals.size(); i++) {
+            System.out.println(String.format("Local %d: %s", i + 1, allParentChildLocals.get(i).getO2()));
+            allocSites.add(demandPointsTo.allocSites(allParentChildLocals.get(i).getO1()));
+        }
+        System.out.println("----------");
+        System.out.println("Aliases (1 -> the locals on row and column MAY points to the same memory location, 0 -> otherwise)");
+        new AliasMatrix(allocSites).print(System.out);
+        System.out.println(demandPointsTo.getStatistics());
+    }
+
+    // The allocation sites and aliases of the ClassParent and ClassChild locals, read from a SetupSnapshot; FlowDroid
+    // (with Spark) only runs if there is no snapshot for the APK yet
+    static void snapshotAnalysis(File snapshotRoot){
+        SetupSnapshot snapshot;
+        try {
+            snapshot = SetupSnapshot.getOrCreate(snapshotRoot, apkPath, androidJar, InfoflowConfiguration.CallgraphAlgorithm.SPARK);
+        } catch (IOException e) {
+            AndroidUtil.reportError(e);
+            return;
         }
+        System.out.println((snapshot.isRestored() ? "Restored the snapshot " : "Saved the snapshot ") + snapshot.getDirectory());
+        List<String> parentChildLocals = new ArrayList<>();
+        for(String local : snapshot.getLocals()){
+            String[] methodAndLocal = local.split("\t");
+            String localType = snapshot.getLocalType(methodAndLocal[0], methodAndLocal[1]);
+            if(localType.equals(classParentName) || localType.equals(classChildName))
+                parentChildLocals.add(local);
+        }
+        List<int[]> allocSites = new ArrayList<>();
+        for(String local : parentChildLocals){
+            String[] methodAndLocal = local.split("\t");
+            int[] localAllocSites = snapshot.getAllocSites(methodAndLocal[0], methodAndLocal[1]);
+            allocSites.add(localAllocSites);
+            if(!methodAndLocal[0].equals(intermediaryMethodSignature))
+                continue;
+            for(int allocSite : localAllocSites)
+                System.out.println(String.format("Local %s in intermediaryMethod is allocated at method %s through expression: %s",
+                        methodAndLocal[1], snapshot.getAllocSiteMethod(allocSite), snapshot.getAllocSiteExpression(allocSite)));
+        }
+        System.out.println("----------");
+        for(int i=0; i< parentChildLocals.size(); i++) {
+            String[] methodAndLocal = parentChildLocals.get(i).split("\t");
+            System.out.println(String.format("Local %d: %s {%s}", i + 1, CallGraphQuery.getShortName(methodAndLocal[0]), methodAndLocal[1]));
+        }
+        System.out.println("----------");
+        System.out.println("Aliases (1 -> the locals on row and column MAY points to the same memory location, 0 -> otherwise)");
+        new AliasMatrix(allocSites).print(System.out);
+    }
 
+    static void runSpark(){
+        Map<String, String> sparkOptions = new HashMap<>(PhaseOptions.v().getPhaseOptions("cg.spark"));
+        sparkOptions.put("enabled", "true");
+        SparkTransformer.v().transform("cg.spark", sparkOptions);
     }
 
     public static List<Pair<Local, String>> getParentChildClassLocals() {
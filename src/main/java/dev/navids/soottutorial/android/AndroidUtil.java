@@ -7,10 +7,20 @@ import soot.jimple.infoflow.android.InfoflowAndroidConfiguration;
 import soot.jimple.infoflow.android.manifest.ProcessManifest;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
 
 public class AndroidUtil {
+    // Whether an example handled an error it couldn't recover from (e.g. an output file it couldn't write), so
+    // BatchRunner fails the run even though the example doesn't throw
+    private static volatile boolean errorReported = false;
+
+    public static void reportError(Exception e) {
+        errorReported = true;
+        e.printStackTrace();
+    }
+
+    public static boolean hasReportedError() {
+        return errorReported;
+    }
 
     public static String getPackageName(String apkPath) {
         String packageName = "";
@@ -18,17 +28,15 @@ public class AndroidUtil {
             ProcessManifest manifest = new ProcessManifest(apkPath);
             packageName = manifest.getPackageName();
         } catch (IOException e) {
-            e.printStackTrace();
+            reportError(e);
         } catch (XmlPullParserException e) {
-            e.printStackTrace();
+            reportError(e);
         }
         return packageName;
     }
 
     public static boolean isAndroidMethod(SootMethod sootMethod){
-        String clsSig = sootMethod.getDeclaringClass().getName();
-        List<String> androidPrefixPkgNames = Arrays.asList("android.", "com.google.android", "androidx.");
-        return androidPrefixPkgNames.stream().map(clsSig::startsWith).reduce(false, (res, curr) -> res || curr);
+        return PackageClassifier.v().isFramework(sootMethod.getDeclaringClass());
     }
 
     public static InfoflowAndroidConfiguration getFlowDroidConfig(String apkPath, String androidJar) {
@@ -0,0 +1,216 @@
+package dev.navids.soottutorial.android;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs one of the Android examples on every APK of a directory. Soot and FlowDroid keep their state in singletons
+// (G.reset(), Scene.v(), ...), so each APK is analyzed by its own worker JVM; at most `jobs` workers run at the same
+// time, each with a heap cap and a timeout after which it is killed. The output of each worker goes to its own log file,
+// and one line per APK is appended to report.tsv as soon as its worker finishes, so a long scan can be followed (and a
+// partial report is kept if the runner itself is stopped).
+// The examples catch most exceptions and only print them, so a worker also fails (with a non-zero exit code) when a
+// stack trace is printed to System.err during its run, or when an instrumenting job writes no instrumented APK.
+public class BatchRunner {
+    public enum Status {OK, FAILED, TIMEOUT}
+
+    static final List<String> supportedJobs = Arrays.asList("AndroidCallGraph", "AndroidPTA", "AndroidLogger", "AndroidClassInjector");
+
+    private final String job;
+    private final List<String> jobArgs;
+    private final File outputDir;
+    private final int jobs;
+    private final long timeoutSeconds;
+    private final String maxHeap;
+
+    public BatchRunner(String job, List<String> jobArgs, File outputDir, int jobs, long timeoutSeconds, String maxHeap) {
+        if (!supportedJobs.contains(job))
+            throw new IllegalArgumentException("The job must be one of " + supportedJobs);
+        this.job = job;
+        this.jobArgs = jobArgs;
+        this.outputDir = outputDir;
+        this.jobs = jobs;
+        this.timeoutSeconds = timeoutSeconds;
+        this.maxHeap = maxHeap;
+    }
+
+    // Returns the number of APKs with each status
+    public Map<Status, Integer> run(List<File> apks) throws IOException, InterruptedException {
+        File logDir = new File(outputDir, "logs");
+        logDir.mkdirs();
+        Map<Status, Integer> statusCounts = new EnumMap<>(Status.class);
+        for (Status status : Status.values())
+            statusCounts.put(status, 0);
+        AtomicInteger finished = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try (PrintWriter report = new PrintWriter(new FileWriter(new File(outputDir, "report.tsv")))) {
+            report.println("apk\tjob\tstatus\texit_code\tseconds\tlog");
+            report.flush();
+            for (File apk : apks) {
+                executor.execute(() -> {
+                    File log = new File(logDir, apk.getName() + ".log");
+                    long start = System.currentTimeMillis();
+                    Status status;
+                    int exitCode = -1;
+                    try {
+                        Process process = startWorker(apk, log);
+                        if (process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                            exitCode = process.exitValue();
+                            status = exitCode == 0 ? Status.OK : Status.FAILED;
+                        } else {
+                            process.destroyForcibly().waitFor();
+                            status = Status.TIMEOUT;
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        status = Status.FAILED;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    double seconds = (System.currentTimeMillis() - start) / 1000.0;
+                    synchronized (report) {
+                        report.println(String.format("%s\t%s\t%s\t%d\t%.1f\t%s", apk.getPath(), job, status, exitCode, seconds, log.getPath()));
+                        report.flush();
+                        statusCounts.put(status, statusCounts.get(status) + 1);
+                    }
+                    System.out.println(String.format("[%d/%d] %s: %s (%.1fs)", finished.incrementAndGet(), apks.size(), apk.getName(), status, seconds));
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } finally {
+            executor.shutdownNow();
+        }
+        return statusCounts;
+    }
+
+    private Process startWorker(File apk, File log) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Xmx" + maxHeap);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BatchRunner.class.getName());
+        command.add("--worker");
+        command.add(job);
+        command.add(apk.getAbsolutePath());
+        // The instrumented APKs are written to a directory per APK
+        command.add(new File(outputDir, "instrumented" + File.separator + apk.getName()).getAbsolutePath());
+        command.addAll(jobArgs);
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(log);
+        return processBuilder.start();
+    }
+
+    // The worker side: runs the example in this (fresh) JVM and returns its exit code, 0 if it ran without errors
+    static int runWorkerChecked(String job, String apkPath, String instrumentedPath, String[] jobArgs) {
+        try {
+            runWorker(job, apkPath, instrumentedPath, jobArgs);
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return 1;
+        }
+        if (AndroidUtil.hasReportedError()) {
+            System.err.println(job + " reported an error on " + apkPath);
+            return 2;
+        }
+        boolean instruments = job.equals("AndroidLogger") || job.equals("AndroidClassInjector");
+        if (instruments && !new File(instrumentedPath, new File(apkPath).getName()).exists()) {
+            System.err.println(job + " wrote no instrumented APK to " + instrumentedPath);
+            return 3;
+        }
+        return 0;
+    }
+
+    // Points the example to the APK and runs it
+    static void runWorker(String job, String apkPath, String instrumentedPath, String[] jobArgs) {
+        switch (job) {
+            case "AndroidCallGraph":
+                AndroidCallgraph.apkPath = apkPath;
+                AndroidCallgraph.main(jobArgs);
+                break;
+            case "AndroidPTA":
+                AndroidPointsToAnalysis.apkPath = apkPath;
+                AndroidPointsToAnalysis.main(jobArgs);
+                break;
+            case "AndroidLogger":
+                AndroidLogger.apkPath = apkPath;
+                AndroidLogger.outputPath = instrumentedPath;
+                AndroidLogger.main(jobArgs);
+                break;
+            case "AndroidClassInjector":
+                AndroidClassInjector.apkPath = apkPath;
+                AndroidClassInjector.outputPath = instrumentedPath;
+                AndroidClassInjector.main(jobArgs);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown job " + job);
+        }
+    }
+
+    public static List<File> findApks(File apkDir) {
+        List<File> apks = new ArrayList<>();
+        File[] files = apkDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(".apk"))
+                    apks.add(file);
+            }
+        }
+        apks.sort(Comparator.comparing(File::getName));
+        return apks;
+    }
+
+    private static final String usage = "Usage: BatchRunner <job> <apk_dir> <output_dir> [--jobs <n>] [--timeout <seconds>] " +
+            "[--memory <max_heap>] [-- <job arguments>...]\n<job> is one of " + supportedJobs;
+
+    public static void main(String[] args) {
+        // A worker process started by the runner: --worker <job> <apk> <instrumented_dir> <job arguments>...
+        if (args.length >= 4 && args[0].equals("--worker")) {
+            int exitCode = runWorkerChecked(args[1], args[2], args[3], Arrays.copyOfRange(args, 4, args.length));
+            // Some of the examples leave non-daemon threads behind
+            System.exit(exitCode);
+        }
+        if (args.length < 3) {
+            System.err.println(usage);
+            return;
+        }
+        int jobs = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        long timeoutSeconds = 30 * 60;
+        String maxHeap = "4g";
+        List<String> jobArgs = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--")) {
+                jobArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else if (args[i].equals("--jobs") && i + 1 < args.length) {
+                jobs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--timeout") && i + 1 < args.length) {
+                timeoutSeconds = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--memory") && i + 1 < args.length) {
+                maxHeap = args[++i];
+            } else {
+                System.err.println(usage);
+                return;
+            }
+        }
+        List<File> apks = findApks(new File(args[1]));
+        if (apks.isEmpty()) {
+            System.err.println("There's no APK in " + args[1]);
+            return;
+        }
+        try {
+            BatchRunner batchRunner = new BatchRunner(args[0], jobArgs, new File(args[2]), jobs, timeoutSeconds, maxHeap);
+            Map<Status, Integer> statusCounts = batchRunner.run(apks);
+            System.out.println(String.format("%d APKs: %s, the report is in %s", apks.size(), statusCounts, new File(args[2], "report.tsv")));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package dev.navids.soottutorial.android;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import soot.*;
+import soot.jimple.*;
+import soot.jimple.spark.pag.AllocNode;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.options.SparkOptions;
+import soot.toolkits.scalar.Pair;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+// Computes the allocation sites of single locals on demand, without a whole-program points-to analysis. A query walks
+// backward from the local through its definitions: copies and casts, parameters to the arguments at the call sites of
+// the method, invoke results to the returned values of the callees, and stops at allocations. Calls are resolved with
+// the Scene's call graph (e.g. CHA), and the walk is flow- and context-insensitive.
+// Values that come from the heap (fields, array elements), from methods without bodies or through implicit calls are
+// not followed; such a query, or one that visits more than `budget` locals, falls back to the whole-program result of
+// the PointsToCache the fallback supplies (e.g. after running Spark, only once the first query needs it), and is
+// otherwise unknown (null).
+public class DemandPointsTo {
+    private final int budget;
+    private final Supplier<PointsToCache> fallbackSupplier;
+    private PointsToCache fallback = null;
+    private final CallGraph callGraph;
+    // The options the fallback runs Spark with, which decide which allocation sites Spark merges into one node
+    private final SparkOptions sparkOptions;
+
+    // Allocation sites are numbered by the same object Spark's AllocNode.getNewExpr returns for them (see allocKey), so
+    // the ids of demand and fallback answers can be compared
+    private final TObjectIntHashMap<Object> allocSiteToId = new TObjectIntHashMap<>(64, 0.5f, -1);
+    private final List<Pair<SootMethod, Object>> idToAllocSite = new ArrayList<>();
+    private final Map<Local, int[]> results = new HashMap<>();
+    private final Map<SootMethod, Map<Local, List<DefinitionStmt>>> methodDefinitions = new HashMap<>();
+    private final Map<Local, SootMethod> localToMethod = new HashMap<>();
+    private int demandQueries = 0, fallbackQueries = 0, unknownQueries = 0;
+
+    public DemandPointsTo(int budget, Supplier<PointsToCache> fallbackSupplier) {
+        this.budget = budget;
+        this.fallbackSupplier = fallbackSupplier;
+        this.callGraph = Scene.v().getCallGraph();
+        this.sparkOptions = new SparkOptions(PhaseOptions.v().getPhaseOptions("cg.spark"));
+    }
+
+    // For locals whose method is not known; the application methods are searched for it
+    public int[] allocSites(Local local) {
+        if (localToMethod.isEmpty()) {
+            for (SootClass sootClass : Scene.v().getApplicationClasses()) {
+                for (SootMethod sootMethod : sootClass.getMethods()) {
+                    if (sootMethod.hasActiveBody()) {
+                        for (Local methodLocal : sootMethod.getActiveBody().getLocals())
+                            localToMethod.put(methodLocal, sootMethod);
+                    }
+                }
+            }
+        }
+        SootMethod method = localToMethod.get(local);
+        if (method == null)
+            throw new IllegalArgumentException(local + " is not a local of an application method");
+        return allocSites(method, local);
+    }
+
+    // The sorted ids of the allocation sites the local may point to, or null if they are unknown
+    public int[] allocSites(SootMethod method, Local local) {
+        if (results.containsKey(local))
+            return results.get(local);
+        int[] allocSites = walkDefinitions(method, local);
+        if (allocSites != null) {
+            demandQueries++;
+        } else {
+            allocSites = fallbackSupplier != null ? fromFallback(local) : null;
+            if (allocSites != null)
+                fallbackQueries++;
+            else
+                unknownQueries++;
+        }
+        results.put(local, allocSites);
+        return allocSites;
+    }
+
+    // Returns null if the walk reaches a value it doesn't follow or visits more than `budget` locals
+    private int[] walkDefinitions(SootMethod method, Local local) {
+        Set<Local> visited = new HashSet<>();
+        Deque<Pair<SootMethod, Local>> worklist = new ArrayDeque<>();
+        TIntHashSet allocSites = new TIntHashSet();
+        visited.add(local);
+        worklist.add(new Pair<>(method, local));
+        while (!worklist.isEmpty()) {
+            Pair<SootMethod, Local> item = worklist.poll();
+            SootMethod itemMethod = item.getO1();
+            Map<Local, List<DefinitionStmt>> definitions = getDefinitions(itemMethod);
+            if (definitions == null)
+                return null;
+            for (DefinitionStmt definition : definitions.getOrDefault(item.getO2(), Collections.emptyList())) {
+                List<Pair<SootMethod, Value>> sources = getSources(itemMethod, definition);
+                if (sources == null)
+                    return null;
+                for (Pair<SootMethod, Value> source : sources) {
+                    Value value = source.getO2();
+                    if (value instanceof Local) {
+                        if (visited.add((Local) value)) {
+                            if (visited.size() > budget)
+                                return null;
+                            worklist.add(new Pair<>(source.getO1(), (Local) value));
+                        }
+                    } else if (value instanceof AnyNewExpr || value instanceof StringConstant || value instanceof ClassConstant) {
+                        allocSites.add(allocSiteId(source.getO1(), value));
+                    } else if (!(value instanceof NullConstant)) {
+                        return null;
+                    }
+                }
+            }
+        }
+        int[] result = allocSites.toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    // The values the right-hand side of a definition may come from, each with the method it's in, or null if they are
+    // not known
+    private List<Pair<SootMethod, Value>> getSources(SootMethod method, DefinitionStmt definition) {
+        Value rightOp = definition.getRightOp();
+        if (rightOp instanceof CastExpr)
+            rightOp = ((CastExpr) rightOp).getOp();
+        if (rightOp instanceof ParameterRef || rightOp instanceof ThisRef)
+            return getCallerArguments(method, rightOp);
+        if (rightOp instanceof InvokeExpr)
+            return getReturnedValues(definition);
+        return Collections.singletonList(new Pair<>(method, rightOp));
+    }
+
+    private List<Pair<SootMethod, Value>> getCallerArguments(SootMethod method, Value rightOp) {
+        List<Pair<SootMethod, Value>> arguments = new ArrayList<>();
+        Iterator<Edge> edges = callGraph.edgesInto(method);
+        // A method without callers is an entry point, called with unknown arguments
+        if (!edges.hasNext())
+            return null;
+        while (edges.hasNext()) {
+            Edge edge = edges.next();
+            if (!edge.isExplicit() || !edge.srcStmt().containsInvokeExpr())
+                return null;
+            InvokeExpr invokeExpr = edge.srcStmt().getInvokeExpr();
+            if (rightOp instanceof ThisRef) {
+                if (!(invokeExpr instanceof InstanceInvokeExpr))
+                    return null;
+                arguments.add(new Pair<>(edge.src(), ((InstanceInvokeExpr) invokeExpr).getBase()));
+            } else {
+                arguments.add(new Pair<>(edge.src(), invokeExpr.getArg(((ParameterRef) rightOp).getIndex())));
+            }
+        }
+        return arguments;
+    }
+
+    private List<Pair<SootMethod, Value>> getReturnedValues(Unit callSite) {
+        List<Pair<SootMethod, Value>> returnedValues = new ArrayList<>();
+        Iterator<Edge> edges = callGraph.edgesOutOf(callSite);
+        if (!edges.hasNext())
+            return null;
+        while (edges.hasNext()) {
+            SootMethod callee = edges.next().tgt();
+            if (!callee.isConcrete())
+                return null;
+            for (Unit unit : callee.retrieveActiveBody().getUnits()) {
+                if (unit instanceof ReturnStmt)
+                    returnedValues.add(new Pair<>(callee, ((ReturnStmt) unit).getOp()));
+            }
+        }
+        return returnedValues;
+    }
+
+    // The definitions of each local of the method, or null if it has no body
+    private Map<Local, List<DefinitionStmt>> getDefinitions(SootMethod method) {
+        Map<Local, List<DefinitionStmt>> definitions = methodDefinitions.get(method);
+        if (definitions != null)
+            return definitions;
+        if (!method.isConcrete())
+            return null;
+        definitions = new HashMap<>();
+        for (Unit unit : method.retrieveActiveBody().getUnits()) {
+            if (unit instanceof DefinitionStmt && ((DefinitionStmt) unit).getLeftOp() instanceof Local) {
+                DefinitionStmt definitionStmt = (DefinitionStmt) unit;
+                definitions.computeIfAbsent((Local) definitionStmt.getLeftOp(), k -> new ArrayList<>()).add(definitionStmt);
+            }
+        }
+        methodDefinitions.put(method, definitions);
+        return definitions;
+    }
+
+    private int[] fromFallback(Local local) {
+        if (fallback == null)
+            fallback = fallbackSupplier.get();
+        int[] fallbackAllocSites = fallback.allocSites(local);
+        if (fallbackAllocSites == null)
+            return null;
+        int[] allocSites = new int[fallbackAllocSites.length];
+        for (int i = 0; i < allocSites.length; i++) {
+            AllocNode allocNode = fallback.getAllocNode(fallbackAllocSites[i]);
+            allocSites[i] = idOf(allocNode.getMethod(), allocNode.getNewExpr());
+        }
+        Arrays.sort(allocSites);
+        return allocSites;
+    }
+
+    // The id of an allocation site the walk found, merged the way Spark's MethodNodeFactory and PAG merge them: with
+    // types-for-sites (or vta) by type, StringBuffers and StringBuilders by type with merge-stringbuffer, and string
+    // constants into one node unless string-constants is on or they name a class or an array type.
+    // The merged sites have no method, as in Spark.
+    private int allocSiteId(SootMethod method, Value value) {
+        if (value instanceof StringConstant) {
+            String string = ((StringConstant) value).value;
+            if (sparkOptions.types_for_sites() || sparkOptions.vta())
+                return idOf(null, RefType.v("java.lang.String"));
+            if (sparkOptions.string_constants() || Scene.v().containsClass(string) || string.startsWith("["))
+                return idOf(null, string);
+            return idOf(null, PointsToAnalysis.STRING_NODE);
+        }
+        if (value instanceof ClassConstant) {
+            if (sparkOptions.types_for_sites() || sparkOptions.vta())
+                return idOf(null, RefType.v("java.lang.Class"));
+            return idOf(null, value);
+        }
+        if (sparkOptions.types_for_sites() || sparkOptions.vta())
+            return idOf(method, value.getType());
+        if (value instanceof NewExpr && sparkOptions.merge_stringbuffer()) {
+            String className = ((NewExpr) value).getBaseType().getClassName();
+            if (className.equals("java.lang.StringBuffer") || className.equals("java.lang.StringBuilder"))
+                return idOf(null, value.getType());
+        }
+        return idOf(method, value);
+    }
+
+    private int idOf(SootMethod method, Object allocExpr) {
+        int id = allocSiteToId.get(allocExpr);
+        if (id < 0) {
+            id = idToAllocSite.size();
+            allocSiteToId.put(allocExpr, id);
+            idToAllocSite.add(new Pair<>(method, allocExpr));
+        }
+        return id;
+    }
+
+    // The method and the allocation expression (a NewExpr, NewArrayExpr, string or ClassConstant) of an allocation site;
+    // for the sites Spark merges, the method is null and the expression is the type or PointsToAnalysis.STRING_NODE
+    public Pair<SootMethod, Object> getAllocSite(int id) {
+        return idToAllocSite.get(id);
+    }
+
+    public String getStatistics() {
+        return String.format("%d queries answered on demand, %d by the fallback, %d unknown", demandQueries, fallbackQueries, unknownQueries);
+    }
+}
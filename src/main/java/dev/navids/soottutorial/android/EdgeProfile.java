@@ -0,0 +1,118 @@
+package dev.navids.soottutorial.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+// The edge and block counts of the methods instrumented by EdgeProfiler, rebuilt offline from its edges file and the
+// counters of a run. The counts of the spanning tree's edges are solved by flow conservation: a node with a single
+// edge of unknown count gets it from the difference of its known incoming and outgoing counts, starting at the leaves.
+public class EdgeProfile {
+    // from, to and count of the edges of each method
+    private final Map<String, List<long[]>> methodEdges = new LinkedHashMap<>();
+
+    // edges: "from, to, counter id" of the edges of each method, as in EdgeProfiler; counts: the counter values
+    public EdgeProfile(Map<String, List<int[]>> edges, Map<Integer, Long> counts) {
+        for (Map.Entry<String, List<int[]>> entry : edges.entrySet())
+            methodEdges.put(entry.getKey(), solve(entry.getValue(), counts));
+    }
+
+    public static EdgeProfile load(File edgesFile, File log) throws IOException {
+        Map<String, List<int[]>> edges = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(edgesFile))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] columns = line.split("\t");
+                if (columns.length != 4)
+                    continue;
+                edges.computeIfAbsent(columns[0], k -> new ArrayList<>()).add(new int[]{Integer.parseInt(columns[1]),
+                        Integer.parseInt(columns[2]), Integer.parseInt(columns[3])});
+            }
+        }
+        return new EdgeProfile(edges, ProbeCounters.readCounts(log));
+    }
+
+    private static List<long[]> solve(List<int[]> edges, Map<Integer, Long> counts) {
+        Long[] values = new Long[edges.size()];
+        Map<Integer, List<Integer>> incidentEdges = new HashMap<>();
+        for (int i = 0; i < edges.size(); i++) {
+            int[] edge = edges.get(i);
+            if (edge[2] >= 0)
+                values[i] = counts.getOrDefault(edge[2], 0L);
+            // A self loop doesn't change the balance of its block
+            if (edge[0] == edge[1])
+                continue;
+            incidentEdges.computeIfAbsent(edge[0], k -> new ArrayList<>()).add(i);
+            incidentEdges.computeIfAbsent(edge[1], k -> new ArrayList<>()).add(i);
+        }
+        Deque<Integer> worklist = new ArrayDeque<>(incidentEdges.keySet());
+        while (!worklist.isEmpty()) {
+            int node = worklist.poll();
+            long balance = 0;
+            int unknown = -1, unknownCount = 0;
+            for (int i : incidentEdges.get(node)) {
+                if (values[i] == null) {
+                    unknown = i;
+                    unknownCount++;
+                } else {
+                    balance += edges.get(i)[1] == node ? values[i] : -values[i];
+                }
+            }
+            if (unknownCount != 1)
+                continue;
+            int[] edge = edges.get(unknown);
+            values[unknown] = edge[1] == node ? -balance : balance;
+            worklist.add(edge[0] == node ? edge[1] : edge[0]);
+        }
+        List<long[]> solved = new ArrayList<>();
+        for (int i = 0; i < edges.size(); i++) {
+            if (values[i] == null)
+                throw new IllegalArgumentException("The edges with a counter don't determine edge " + edges.get(i)[0] + " -> " + edges.get(i)[1]);
+            solved.add(new long[]{edges.get(i)[0], edges.get(i)[1], values[i]});
+        }
+        return solved;
+    }
+
+    public Set<String> getMethods() {
+        return methodEdges.keySet();
+    }
+
+    // Returns -1 if the method has no such edge
+    public long getEdgeCount(String method, int from, int to) {
+        for (long[] edge : methodEdges.getOrDefault(method, Collections.emptyList())) {
+            if (edge[0] == from && edge[1] == to)
+                return edge[2];
+        }
+        return -1;
+    }
+
+    // The number of times each block of the method was entered
+    public Map<Integer, Long> getBlockCounts(String method) {
+        Map<Integer, Long> blockCounts = new TreeMap<>();
+        for (long[] edge : methodEdges.getOrDefault(method, Collections.emptyList())) {
+            if (edge[1] != EdgeProfiler.EXIT)
+                blockCounts.merge((int) edge[1], edge[2], Long::sum);
+        }
+        return blockCounts;
+    }
+
+    // Prints the count of each block entered at least once: EdgeProfile <edge_profile.tsv> <log of the app>
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: EdgeProfile <edge_profile.tsv> <log of the app>");
+            return;
+        }
+        try {
+            EdgeProfile edgeProfile = load(new File(args[0]), new File(args[1]));
+            for (String method : edgeProfile.getMethods()) {
+                for (Map.Entry<Integer, Long> blockCount : edgeProfile.getBlockCounts(method).entrySet()) {
+                    if (blockCount.getValue() != 0)
+                        System.out.println(method + "\tblock " + blockCount.getKey() + "\t" + blockCount.getValue());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
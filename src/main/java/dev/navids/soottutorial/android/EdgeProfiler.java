@@ -0,0 +1,187 @@
+package dev.navids.soottutorial.android;
+
+import soot.*;
+import soot.jimple.IdentityStmt;
+import soot.jimple.Jimple;
+import soot.toolkits.graph.Block;
+import soot.toolkits.graph.BriefBlockGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+// Edge profiling with as few counters as possible (Ball and Larus, "Optimally Profiling and Tracing Programs").
+// The blocks of each body (a BriefBlockGraph) get a virtual EXIT node, with an edge from each tail block to EXIT and
+// one from EXIT to each head block (the entry, exception handlers and unreachable code). With these edges the flow is
+// conserved at every node, so the counts of the edges of a spanning tree follow from the counts of the other edges
+// (the chords). Only the chords get a ProbeCounters counter: the tree is a maximum spanning tree where an edge weighs
+// LOOP_WEIGHT^(its loop depth), so the edges inside loops are the last to get a counter, and the virtual edges, which
+// can't be counted directly, are always in the tree.
+// EdgeProfile rebuilds the counts of all edges and blocks from the "probe <id> <count>" lines of the app's log and the
+// edges written by writeEdges. The counts are exact for the runs where no exception is thrown inside a method.
+public class EdgeProfiler {
+    public static final int EXIT = -1;
+
+    private final List<MethodPlan> plans = new ArrayList<>();
+    private int counterCount = 0;
+
+    // The edges of one body's block graph; the nodes are the block indices and EXIT
+    private static class MethodPlan {
+        final SootMethod method;
+        final List<Block> blocks;
+        final List<int[]> edges = new ArrayList<>();
+        final List<Integer> counterIds = new ArrayList<>();
+
+        MethodPlan(SootMethod method, List<Block> blocks) {
+            this.method = method;
+            this.blocks = blocks;
+        }
+    }
+
+    // The counters are planned for all methods before any body is changed, since their number sizes the counter array
+    public EdgeProfiler(Collection<SootMethod> methods) {
+        for (SootMethod method : methods)
+            plans.add(plan(method));
+    }
+
+    public int getCounterCount() {
+        return counterCount;
+    }
+
+    private MethodPlan plan(SootMethod method) {
+        Body body = method.retrieveActiveBody();
+        BriefBlockGraph graph = new BriefBlockGraph(body);
+        MethodPlan plan = new MethodPlan(method, graph.getBlocks());
+        Map<Unit, Integer> loopDepths = InstrumentationPolicy.getLoopDepths(body);
+        List<Double> weights = new ArrayList<>();
+        for (Block head : graph.getHeads()) {
+            plan.edges.add(new int[]{EXIT, head.getIndexInMethod()});
+            weights.add(Double.POSITIVE_INFINITY);
+        }
+        for (Block block : plan.blocks) {
+            int depth = loopDepths.getOrDefault(block.getTail(), 0);
+            for (Block succ : block.getSuccs()) {
+                plan.edges.add(new int[]{block.getIndexInMethod(), succ.getIndexInMethod()});
+                weights.add(Math.pow(InstrumentationPolicy.LOOP_WEIGHT, Math.min(depth, loopDepths.getOrDefault(succ.getHead(), 0))));
+            }
+            if (block.getSuccs().isEmpty()) {
+                plan.edges.add(new int[]{block.getIndexInMethod(), EXIT});
+                weights.add(Math.pow(InstrumentationPolicy.LOOP_WEIGHT, depth));
+            }
+        }
+        // Kruskal's algorithm on the heaviest edges first; the edges that would close a cycle are the chords
+        Integer[] order = new Integer[plan.edges.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (i, j) -> Double.compare(weights.get(j), weights.get(i)));
+        int[] parents = new int[plan.blocks.size() + 1];
+        for (int i = 0; i < parents.length; i++)
+            parents[i] = i;
+        Integer[] counterIds = new Integer[order.length];
+        for (int i : order) {
+            int[] edge = plan.edges.get(i);
+            // EXIT is the last node of the union-find
+            int from = find(parents, edge[0] == EXIT ? plan.blocks.size() : edge[0]);
+            int to = find(parents, edge[1] == EXIT ? plan.blocks.size() : edge[1]);
+            if (from != to) {
+                parents[from] = to;
+                counterIds[i] = -1;
+            } else {
+                counterIds[i] = counterCount++;
+            }
+        }
+        plan.counterIds.addAll(Arrays.asList(counterIds));
+        return plan;
+    }
+
+    private static int find(int[] parents, int node) {
+        while (parents[node] != node) {
+            parents[node] = parents[parents[node]];
+            node = parents[node];
+        }
+        return node;
+    }
+
+    // Inserts the increments of the chords' counters; the counters must have getCounterCount() slots. The bodies must be
+    // the ones that were planned, so the transformer has to run before the packs (see InstrumentUtil.transformApplicationBodies).
+    public BodyTransformer getTransformer(ProbeCounters probeCounters) {
+        Map<Body, MethodPlan> bodyPlans = new IdentityHashMap<>();
+        for (MethodPlan plan : plans)
+            bodyPlans.put(plan.method.getActiveBody(), plan);
+        return new BodyTransformer() {
+            @Override
+            protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
+                MethodPlan plan = bodyPlans.get(b);
+                if (plan == null)
+                    return;
+                // The critical edges are split first, since the other increments are inserted before the blocks' units
+                // and take over the jumps to them
+                List<Integer> chords = new ArrayList<>();
+                for (int i = 0; i < plan.edges.size(); i++) {
+                    if (plan.counterIds.get(i) >= 0)
+                        chords.add(i);
+                }
+                chords.sort(Comparator.comparing(i -> !isCriticalEdge(plan, plan.edges.get(i))));
+                for (int i : chords)
+                    instrumentEdge(b, plan, plan.edges.get(i), probeCounters.generateIncrement(b, plan.counterIds.get(i)));
+                b.validate();
+            }
+        };
+    }
+
+    private static boolean isCriticalEdge(MethodPlan plan, int[] edge) {
+        return edge[1] != EXIT && plan.blocks.get(edge[0]).getSuccs().size() > 1 && plan.blocks.get(edge[1]).getPreds().size() > 1;
+    }
+
+    private static void instrumentEdge(Body body, MethodPlan plan, int[] edge, List<Unit> increment) {
+        UnitPatchingChain units = body.getUnits();
+        Block from = plan.blocks.get(edge[0]);
+        Unit tail = from.getTail();
+        if (edge[1] == EXIT || from.getSuccs().size() == 1) {
+            // The end of the block; the jumps to its tail now go to the increment
+            if (tail instanceof IdentityStmt)
+                units.insertAfter(increment, tail);
+            else
+                units.insertBefore(increment, tail);
+            return;
+        }
+        Block to = plan.blocks.get(edge[1]);
+        if (to.getPreds().size() == 1) {
+            // The beginning of the block, after its identity statements
+            Unit unit = to.getHead();
+            while (unit != to.getTail() && unit instanceof IdentityStmt)
+                unit = units.getSuccOf(unit);
+            if (unit instanceof IdentityStmt)
+                units.insertAfter(increment, unit);
+            else
+                units.insertBefore(increment, unit);
+            return;
+        }
+        // A critical edge: the increment goes between the blocks if `to` follows `from`, and otherwise at the end of the
+        // body followed by a goto to `to`. The branches of the tail to `to` jump to the increment.
+        if (tail.fallsThrough() && units.getSuccOf(tail) == to.getHead()) {
+            units.insertAfter(increment, tail);
+        } else {
+            units.addAll(increment);
+            units.add(Jimple.v().newGotoStmt(to.getHead()));
+        }
+        for (UnitBox unitBox : tail.getUnitBoxes()) {
+            if (unitBox.getUnit() == to.getHead())
+                unitBox.setUnit(increment.get(0));
+        }
+    }
+
+    // One "<method signature>\t<from block>\t<to block>\t<counter id>" line per edge, where EXIT is -1 and the counter id
+    // is -1 for the edges of the spanning tree
+    public void writeEdges(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (MethodPlan plan : plans) {
+                for (int i = 0; i < plan.edges.size(); i++) {
+                    int[] edge = plan.edges.get(i);
+                    writer.println(plan.method.getSignature() + "\t" + edge[0] + "\t" + edge[1] + "\t" + plan.counterIds.get(i));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package dev.navids.soottutorial.android;
+
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.MultiDexContainer;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import soot.*;
+import soot.toDex.DexPrinter;
+import soot.toDex.MultiDexBuilder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+// An output stage for the instrumentation examples that writes again only what the transformers changed, instead of
+// PackManager.writeOutput(), which converts every class of every dex file back to dex.
+// The transformers are wrapped by track(), which compares each body before and after the transformation. write() then
+// copies the APK: the dex files without changed classes and the resources are copied as they are, and in the other dex
+// files only the changed classes are replaced by their conversion with Soot's DexPrinter, the other classes are copied
+// from the original dex file with dexlib2. The classes the examples inject are added to classes.dex, or to new dex files
+// if it's full.
+// The output directory keeps a stamp of the APK's content, the platform jar and the arguments of the example, so the
+// next run with the same stamp reuses the instrumented APK without even loading it in Soot.
+public class IncrementalApkWriter {
+    private static final int VERSION = 1;
+    public static final String STAMP_FILE = "instrumentation.stamp";
+
+    private final File apk;
+    private final File outputDir;
+    private final String stamp;
+    private final Set<String> changedClasses = ConcurrentHashMap.newKeySet();
+
+    public IncrementalApkWriter(File apk, File outputDir, String stamp) {
+        this.apk = apk;
+        this.outputDir = outputDir;
+        this.stamp = stamp;
+    }
+
+    // The writer of the examples' "--incremental" argument, or null if it's not given. The stamp covers all the
+    // arguments of the example and the content of the ones that name files (e.g. the log of --profile), so a different
+    // mode, option or input writes the APK again.
+    static IncrementalApkWriter fromArgs(String[] args, String example, String androidPlatforms, String apkPath, String outputPath) {
+        if (!Arrays.asList(args).contains("--incremental"))
+            return null;
+        List<File> inputFiles = new ArrayList<>();
+        for (String arg : args) {
+            if (new File(arg).isFile())
+                inputFiles.add(new File(arg));
+        }
+        try {
+            String platformJar = Scene.v().getAndroidJarPath(androidPlatforms, apkPath);
+            return new IncrementalApkWriter(new File(apkPath), new File(outputPath),
+                    computeStamp(new File(apkPath), new File(platformJar), example + " " + String.join(" ", args), inputFiles));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static String computeStamp(File apk, File platformJar, String transformers, List<File> inputFiles) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            updateDigest(digest, apk);
+            for (File inputFile : inputFiles) {
+                digest.update(inputFile.getPath().getBytes("UTF-8"));
+                updateDigest(digest, inputFile);
+            }
+            digest.update(String.format("%s|%d|%d|%s|%d", platformJar.getAbsolutePath(), platformJar.length(),
+                    platformJar.lastModified(), transformers, VERSION).getBytes("UTF-8"));
+            StringBuilder stamp = new StringBuilder();
+            for (byte b : digest.digest())
+                stamp.append(String.format("%02x", b));
+            return stamp.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void updateDigest(MessageDigest digest, File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[1 << 16];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                digest.update(buffer, 0, read);
+        }
+    }
+
+    public File getOutputApk() {
+        return new File(outputDir, apk.getName());
+    }
+
+    // Whether the output directory has the instrumented APK of an earlier run with the same stamp
+    public boolean isUpToDate() {
+        File stampFile = new File(outputDir, STAMP_FILE);
+        if (!stampFile.exists() || !getOutputApk().exists())
+            return false;
+        try {
+            return new String(Files.readAllBytes(stampFile.toPath()), "UTF-8").trim().equals(stamp);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Deletes the files of earlier runs from the output directory (e.g. the probe_methods.tsv of another mode), except
+    // the instrumented APK, which is replaced when the new one is written
+    public void cleanOutputDir() {
+        File[] files = outputDir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (!file.equals(getOutputApk()))
+                file.delete();
+        }
+    }
+
+    // The transformer, recording the classes of the bodies it changes; like the transformer, it can run on several
+    // threads at once
+    public BodyTransformer track(BodyTransformer transformer) {
+        return new BodyTransformer() {
+            @Override
+            protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
+                long before = fingerprint(b);
+                transformer.transform(b, phaseName, options);
+                if (fingerprint(b) != before)
+                    changedClasses.add(b.getMethod().getDeclaringClass().getName());
+            }
+        };
+    }
+
+    static long fingerprint(Body body) {
+        long hash = body.getLocalCount() * 31L + body.getTraps().size();
+        for (Unit unit : body.getUnits())
+            hash = hash * 1000003L + unit.toString().hashCode();
+        return hash;
+    }
+
+    public Set<String> getChangedClasses() {
+        return changedClasses;
+    }
+
+    // Writes the APK to the output directory, replacing the output of an earlier run, and then its stamp
+    public void write() throws IOException {
+        deleteStamp();
+        // The changed classes, converted by Soot; the classes that are not in the APK (i.e. injected) are converted
+        // once all of the APK's classes are known
+        ClassDefPrinter printer = new ClassDefPrinter();
+        for (SootClass sootClass : Scene.v().getApplicationClasses()) {
+            if (!sootClass.isPhantom() && changedClasses.contains(sootClass.getName()))
+                printer.add(sootClass);
+        }
+        Map<String, ClassDef> sootClassDefs = printer.getClassDefs();
+        List<ClassDef> newClassDefs = new ArrayList<>();
+        int rewrittenDexFiles = assemble(apk, getOutputApk(), (dexFile, sink) -> {
+            boolean changed = false;
+            for (ClassDef classDef : dexFile.getClasses()) {
+                ClassDef sootClassDef = sootClassDefs.get(classDef.getType());
+                changed |= sootClassDef != null;
+                sink.accept(sootClassDef != null ? sootClassDef : classDef);
+            }
+            return changed;
+        }, originalTypes -> {
+            newClassDefs.addAll(convertNewClasses(originalTypes));
+            return newClassDefs;
+        });
+        writeStamp();
+        System.out.println(String.format("Rewrote %d dex files with %d changed and %d new classes to %s",
+                rewrittenDexFiles, sootClassDefs.size(), newClassDefs.size(), getOutputApk()));
+    }
+
+    void deleteStamp() throws IOException {
+        Files.deleteIfExists(new File(outputDir, STAMP_FILE).toPath());
+    }
+
+    void writeStamp() throws IOException {
+        Files.write(new File(outputDir, STAMP_FILE).toPath(), stamp.getBytes("UTF-8"));
+    }
+
+    // Replaces or keeps the classes of one dex file of the APK
+    interface DexRewriter {
+        // Passes each class of the dex file, or the class that replaces it, to `sink`, and returns whether any class was
+        // replaced
+        boolean rewrite(DexBackedDexFile dexFile, Consumer<ClassDef> sink) throws IOException;
+    }
+
+    // The application classes that are not among the APK's types, converted by Soot
+    static List<ClassDef> convertNewClasses(Set<String> originalTypes) {
+        ClassDefPrinter printer = new ClassDefPrinter();
+        for (SootClass sootClass : Scene.v().getApplicationClasses()) {
+            if (!sootClass.isPhantom() && !originalTypes.contains(toType(sootClass)))
+                printer.add(sootClass);
+        }
+        return new ArrayList<>(printer.getClassDefs().values());
+    }
+
+    // Copies the APK to outputApk, without its signature, with the dex files the rewriter changed written again and the
+    // others copied as they are. `newClasses` is called with the types of the APK once the other dex files are done, and
+    // its classes are added to the primary dex file, which is written last. The classes that don't fit in their dex file
+    // go to new dex files. Returns the number of dex files that were written again.
+    static int assemble(File apk, File outputApk, DexRewriter rewriter, Function<Set<String>, List<ClassDef>> newClasses) throws IOException {
+        MultiDexContainer<? extends DexBackedDexFile> container = DexFileFactory.loadDexContainer(apk, null);
+        Map<String, DexBackedDexFile> dexFiles = new LinkedHashMap<>();
+        Set<String> originalTypes = new HashSet<>();
+        for (String entryName : container.getDexEntryNames()) {
+            DexBackedDexFile dexFile = container.getEntry(entryName).getDexFile();
+            dexFiles.put(entryName, dexFile);
+            for (ClassDef classDef : dexFile.getClasses())
+                originalTypes.add(classDef.getType());
+        }
+        String primaryDex = dexFiles.containsKey("classes.dex") ? "classes.dex" : dexFiles.keySet().stream().findFirst().orElse(null);
+
+        outputApk.getParentFile().mkdirs();
+        File tmpApk = new File(outputApk.getPath() + ".tmp");
+        int rewrittenDexFiles = 0;
+        try (ZipFile original = new ZipFile(apk);
+             ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmpApk)))) {
+            List<ClassDef> overflow = new ArrayList<>();
+            List<ZipEntry> entries = new ArrayList<>(Collections.list(original.entries()));
+            // The primary dex file is written last, with the new classes
+            entries.sort(Comparator.comparing(entry -> entry.getName().equals(primaryDex)));
+            for (ZipEntry entry : entries) {
+                if (DexPrinter.SIGNATURE_FILE_PATTERN.matcher(entry.getName()).matches())
+                    continue;
+                DexBackedDexFile dexFile = dexFiles.get(entry.getName());
+                if (dexFile == null) {
+                    copyEntry(original, entry, output);
+                    continue;
+                }
+                DexPool dexPool = new DexPool(dexFile.getOpcodes());
+                boolean changed = rewriter.rewrite(dexFile, classDef -> {
+                    if (!internClass(dexPool, classDef))
+                        overflow.add(classDef);
+                });
+                if (entry.getName().equals(primaryDex)) {
+                    for (ClassDef classDef : newClasses.apply(originalTypes)) {
+                        changed = true;
+                        if (!internClass(dexPool, classDef))
+                            overflow.add(classDef);
+                    }
+                }
+                if (changed) {
+                    writeDex(dexPool, entry.getName(), output);
+                    rewrittenDexFiles++;
+                } else {
+                    copyEntry(original, entry, output);
+                }
+            }
+            List<ClassDef> pending = overflow;
+            for (int i = 2; !pending.isEmpty(); i++) {
+                String entryName = "classes" + i + ".dex";
+                if (dexFiles.containsKey(entryName))
+                    continue;
+                DexPool dexPool = new DexPool(dexFiles.get(primaryDex).getOpcodes());
+                List<ClassDef> rest = new ArrayList<>();
+                for (ClassDef classDef : pending) {
+                    if (!internClass(dexPool, classDef))
+                        rest.add(classDef);
+                }
+                if (rest.size() == pending.size())
+                    throw new RuntimeException("Class " + pending.get(0).getType() + " is bigger than a single dex file can be");
+                pending = rest;
+                writeDex(dexPool, entryName, output);
+                rewrittenDexFiles++;
+            }
+        }
+        Files.move(tmpApk.toPath(), outputApk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return rewrittenDexFiles;
+    }
+
+    static String toType(SootClass sootClass) {
+        return "L" + sootClass.getName().replace('.', '/') + ";";
+    }
+
+    // Interns the class if the dex file has room for it
+    private static boolean internClass(DexPool dexPool, ClassDef classDef) {
+        dexPool.mark();
+        dexPool.internClass(classDef);
+        if (!dexPool.hasOverflowed())
+            return true;
+        dexPool.reset();
+        return false;
+    }
+
+    private static void writeDex(DexPool dexPool, String entryName, ZipOutputStream output) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+        output.putNextEntry(new ZipEntry(entryName));
+        output.write(dataStore.getData(), 0, dataStore.getSize());
+        output.closeEntry();
+    }
+
+    // Copies the entry with the same compression method, like DexPrinter does with the resources
+    private static void copyEntry(ZipFile source, ZipEntry sourceEntry, ZipOutputStream output) throws IOException {
+        ZipEntry entry = new ZipEntry(sourceEntry.getName());
+        entry.setMethod(sourceEntry.getMethod());
+        entry.setSize(sourceEntry.getSize());
+        entry.setCrc(sourceEntry.getCrc());
+        output.putNextEntry(entry);
+        try (InputStream in = source.getInputStream(sourceEntry)) {
+            byte[] buffer = new byte[1 << 16];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                output.write(buffer, 0, read);
+        }
+        output.closeEntry();
+    }
+
+    // A DexPrinter that keeps the dex classes it converts instead of writing them
+    static class ClassDefPrinter extends DexPrinter {
+        @Override
+        protected MultiDexBuilder createDexBuilder() {
+            return new ClassDefCollector();
+        }
+
+        Map<String, ClassDef> getClassDefs() {
+            return ((ClassDefCollector) dexBuilder).classDefs;
+        }
+    }
+
+    private static class ClassDefCollector extends MultiDexBuilder {
+        final Map<String, ClassDef> classDefs = new LinkedHashMap<>();
+
+        // The opcodes are only used by the dex files the builder would write
+        ClassDefCollector() {
+            super(Opcodes.getDefault());
+        }
+
+        @Override
+        public void internClass(ClassDef classDef) {
+            classDefs.put(classDef.getType(), classDef);
+        }
+    }
+}
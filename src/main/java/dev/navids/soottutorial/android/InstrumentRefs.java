@@ -0,0 +1,67 @@
+package dev.navids.soottutorial.android;
+
+import soot.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// The references to the methods and fields the instrumentation code calls, made once per Scene instead of looking them
+// up by signature for every instrumented body. The references are shared by all bodies, and the transformers can use
+// them from several threads. Log.i is null when the Scene has no android.util.Log (i.e. it's not an Android app).
+public class InstrumentRefs {
+    private static InstrumentRefs instance = null;
+
+    private final Scene scene;
+    public final RefType stringType;
+    public final RefType stringBuilderType;
+    public final RefType printStreamType;
+    public final SootFieldRef systemOut;
+    public final SootMethodRef println;
+    public final SootMethodRef logI;
+    public final SootMethodRef stringBuilderInit;
+    public final SootMethodRef stringBuilderAppend;
+    public final SootMethodRef stringBuilderToString;
+    public final SootMethodRef objectToString;
+    private final Map<Type, SootMethodRef> stringValueOf = new HashMap<>();
+
+    private InstrumentRefs(Scene scene) {
+        this.scene = scene;
+        SootClass stringClass = scene.getSootClass("java.lang.String");
+        SootClass builderClass = scene.getSootClass("java.lang.StringBuilder");
+        stringType = stringClass.getType();
+        stringBuilderType = builderClass.getType();
+        printStreamType = RefType.v("java.io.PrintStream");
+        // The references are made from their parts, so the classes don't need to be resolved to the signatures level
+        // and no signature string is parsed
+        systemOut = scene.makeFieldRef(scene.getSootClass("java.lang.System"), "out", printStreamType, true);
+        println = scene.makeMethodRef(printStreamType.getSootClass(), "println", Collections.singletonList(stringType), VoidType.v(), false);
+        logI = scene.containsClass("android.util.Log") ? scene.makeMethodRef(scene.getSootClass("android.util.Log"), "i",
+                Arrays.asList(stringType, stringType), IntType.v(), true) : null;
+        stringBuilderInit = scene.makeMethodRef(builderClass, "<init>", Collections.singletonList(stringType), VoidType.v(), false);
+        stringBuilderAppend = scene.makeMethodRef(builderClass, "append", Collections.singletonList(stringType), stringBuilderType, false);
+        stringBuilderToString = scene.makeMethodRef(builderClass, "toString", Collections.emptyList(), stringType, false);
+        objectToString = scene.makeMethodRef(scene.getSootClass("java.lang.Object"), "toString", Collections.emptyList(), stringType, false);
+        for (Type type : new Type[]{BooleanType.v(), CharType.v(), IntType.v(), LongType.v(), FloatType.v(), DoubleType.v()})
+            stringValueOf.put(type, scene.makeMethodRef(stringClass, "valueOf", Collections.singletonList(type), stringType, true));
+        // There's no valueOf(byte) or valueOf(short); they are passed as ints
+        stringValueOf.put(ByteType.v(), stringValueOf.get(IntType.v()));
+        stringValueOf.put(ShortType.v(), stringValueOf.get(IntType.v()));
+    }
+
+    // The references of the current Scene; they are resolved again after G.reset()
+    public static synchronized InstrumentRefs v() {
+        if (instance == null || instance.scene != Scene.v())
+            instance = new InstrumentRefs(Scene.v());
+        return instance;
+    }
+
+    // String.valueOf for a primitive type
+    public SootMethodRef stringValueOf(PrimType type) {
+        SootMethodRef valueOf = stringValueOf.get(type);
+        if (valueOf == null)
+            throw new IllegalArgumentException("String has no valueOf for " + type);
+        return valueOf;
+    }
+}
@@ -12,6 +12,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class InstrumentUtil {
     public static final String TAG = "<SOOT_TUTORIAL>";
@@ -31,42 +35,105 @@ public class InstrumentUtil {
         Options.v().set_output_dir(outputPath);
         Scene.v().addBasicClass("java.io.PrintStream",SootClass.SIGNATURES);
         Scene.v().addBasicClass("java.lang.System",SootClass.SIGNATURES);
+        Scene.v().addBasicClass("java.lang.Runtime",SootClass.SIGNATURES);
         Scene.v().loadNecessaryClasses();
     }
 
+    // Applies the transformer to the bodies of all application methods on a pool of `threads` threads, one class per
+    // task, like the body packs of PackManager.runPacks() (which always use one thread per available processor). It
+    // should run before runPacks() and instead of adding the transformer to "jtp"; the transformer must be thread-safe,
+    // i.e., it should only modify the body it's given and resolve the methods and fields it uses beforehand.
+    public static void transformApplicationBodies(BodyTransformer transformer, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (SootClass sootClass : new ArrayList<>(Scene.v().getApplicationClasses())) {
+                if (sootClass.isPhantom())
+                    continue;
+                futures.add(executor.submit(() -> {
+                    for (SootMethod sootMethod : new ArrayList<>(sootClass.getMethods())) {
+                        if (sootMethod.isConcrete())
+                            transformer.transform(sootMethod.retrieveActiveBody());
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not transform the application bodies", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // The --threads argument of the instrumentation examples, or 0 if it's not given
+    static int getThreads(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--threads"))
+                return Integer.parseInt(args[i + 1]);
+        }
+        return 0;
+    }
+
     public static List<Unit> generateLogStmts(JimpleBody b, String msg) {
         return generateLogStmts(b, msg, null);
     }
 
     public static List<Unit> generateLogStmts(JimpleBody b, String msg, Value value) {
+        return generateLogStmts(b, InstrumentRefs.v().logI, msg, value);
+    }
+
+    // The same statements, with a Log.i reference that was resolved beforehand (e.g. once for all bodies)
+    public static List<Unit> generateLogStmts(JimpleBody b, SootMethodRef logMethodRef, String msg, Value value) {
         List<Unit> generated = new ArrayList<>();
         Value logMessage = StringConstant.v(msg);
         Value logType = StringConstant.v(TAG);
         Value logMsg = logMessage;
         if (value != null)
             logMsg = InstrumentUtil.appendTwoStrings(b, logMessage, value, generated);
-        SootMethod sm = Scene.v().getMethod("<android.util.Log: int i(java.lang.String,java.lang.String)>");
-        StaticInvokeExpr invokeExpr = Jimple.v().newStaticInvokeExpr(sm.makeRef(), logType, logMsg);
+        StaticInvokeExpr invokeExpr = Jimple.v().newStaticInvokeExpr(logMethodRef, logType, logMsg);
         generated.add(Jimple.v().newInvokeStmt(invokeExpr));
         return generated;
     }
 
+    // Logs the concatenation of the strings with Log.i, or with System.out.println if the Scene is not an Android app
+    public static List<Unit> generateConcatLogStmts(Body body, List<Value> strings) {
+        InstrumentRefs refs = InstrumentRefs.v();
+        List<Unit> generated = new ArrayList<>();
+        Local builderLocal = generateNewLocal(body, refs.stringBuilderType);
+        generated.add(Jimple.v().newAssignStmt(builderLocal, Jimple.v().newNewExpr(refs.stringBuilderType)));
+        generated.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(builderLocal, refs.stringBuilderInit,
+                StringConstant.v(refs.logI != null ? "" : TAG + " "))));
+        for (Value string : strings)
+            generated.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(builderLocal, refs.stringBuilderAppend, string)));
+        Local messageLocal = generateNewLocal(body, refs.stringType);
+        generated.add(Jimple.v().newAssignStmt(messageLocal, Jimple.v().newVirtualInvokeExpr(builderLocal, refs.stringBuilderToString)));
+        if (refs.logI != null) {
+            generated.add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(refs.logI, StringConstant.v(TAG), messageLocal)));
+        } else {
+            Local psLocal = generateNewLocal(body, refs.printStreamType);
+            generated.add(Jimple.v().newAssignStmt(psLocal, Jimple.v().newStaticFieldRef(refs.systemOut)));
+            generated.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(psLocal, refs.println, messageLocal)));
+        }
+        return generated;
+    }
+
     private static Local appendTwoStrings(Body b, Value s1, Value s2, List<Unit> generated) {
-        RefType stringType = Scene.v().getSootClass("java.lang.String").getType();
-        SootClass builderClass = Scene.v().getSootClass("java.lang.StringBuilder");
-        RefType builderType = builderClass.getType();
-        NewExpr newBuilderExpr = Jimple.v().newNewExpr(builderType);
-        Local builderLocal = generateNewLocal(b, builderType);
+        InstrumentRefs refs = InstrumentRefs.v();
+        NewExpr newBuilderExpr = Jimple.v().newNewExpr(refs.stringBuilderType);
+        Local builderLocal = generateNewLocal(b, refs.stringBuilderType);
         generated.add(Jimple.v().newAssignStmt(builderLocal, newBuilderExpr));
-        Local tmpLocal = generateNewLocal(b, builderType);
-        Local resultLocal = generateNewLocal(b, stringType);
+        Local tmpLocal = generateNewLocal(b, refs.stringBuilderType);
+        Local resultLocal = generateNewLocal(b, refs.stringType);
 
-        VirtualInvokeExpr appendExpr = Jimple.v().newVirtualInvokeExpr(builderLocal,
-                builderClass.getMethod("java.lang.StringBuilder append(java.lang.String)").makeRef(), toString(b, s2, generated));
-        VirtualInvokeExpr toStrExpr = Jimple.v().newVirtualInvokeExpr(builderLocal, builderClass.getMethod("java.lang.String toString()").makeRef());
+        VirtualInvokeExpr appendExpr = Jimple.v().newVirtualInvokeExpr(builderLocal, refs.stringBuilderAppend, toString(b, s2, generated));
+        VirtualInvokeExpr toStrExpr = Jimple.v().newVirtualInvokeExpr(builderLocal, refs.stringBuilderToString);
 
         generated.add(Jimple.v().newInvokeStmt(
-                Jimple.v().newSpecialInvokeExpr(builderLocal, builderClass.getMethod("void <init>(java.lang.String)").makeRef(), s1)));
+                Jimple.v().newSpecialInvokeExpr(builderLocal, refs.stringBuilderInit, s1)));
         generated.add(Jimple.v().newAssignStmt(tmpLocal, appendExpr));
         generated.add(Jimple.v().newAssignStmt(resultLocal, toStrExpr));
 
@@ -74,22 +141,21 @@ public class InstrumentUtil {
     }
 
     public static Value toString(Body b, Value value, List<Unit> generated) {
-        SootClass stringClass = Scene.v().getSootClass("java.lang.String");
-        if (value.getType().equals(stringClass.getType()))
+        InstrumentRefs refs = InstrumentRefs.v();
+        if (value.getType().equals(refs.stringType))
             return value;
         Type type = value.getType();
 
         if (type instanceof PrimType) {
-            Local tmpLocal = generateNewLocal(b, stringClass.getType());
+            Local tmpLocal = generateNewLocal(b, refs.stringType);
             generated.add(Jimple.v().newAssignStmt(tmpLocal,
-                    Jimple.v().newStaticInvokeExpr(stringClass.getMethod("java.lang.String valueOf(" + type.toString() + ")").makeRef(), value)));
+                    Jimple.v().newStaticInvokeExpr(refs.stringValueOf((PrimType) type), value)));
             return tmpLocal;
         } else if (value instanceof Local){
             Local base = (Local) value;
-            SootMethod toStrMethod = Scene.v().getSootClass("java.lang.Object").getMethod("java.lang.String toString()");
-            Local tmpLocal = generateNewLocal(b, stringClass.getType());
+            Local tmpLocal = generateNewLocal(b, refs.stringType);
             generated.add(Jimple.v().newAssignStmt(tmpLocal,
-                    Jimple.v().newVirtualInvokeExpr(base, toStrMethod.makeRef())));
+                    Jimple.v().newVirtualInvokeExpr(base, refs.objectToString)));
             return tmpLocal;
         }
         else{
@@ -0,0 +1,98 @@
+package dev.navids.soottutorial.android;
+
+import soot.BodyTransformer;
+import soot.PackManager;
+import soot.Transform;
+
+import java.io.File;
+import java.io.IOException;
+
+// The output stage shared by the instrumentation examples. It cleans the output directory before a run and writes the
+// instrumented APK after it, with PackManager.writeOutput() or, with --incremental, with an IncrementalApkWriter, which
+// also skips a run whose output is up to date.
+public class InstrumentationOutput {
+    private final String apkPath;
+    private final String outputPath;
+    private final IncrementalApkWriter incrementalWriter;
+
+    private InstrumentationOutput(String apkPath, String outputPath, IncrementalApkWriter incrementalWriter) {
+        this.apkPath = apkPath;
+        this.outputPath = outputPath;
+        this.incrementalWriter = incrementalWriter;
+    }
+
+    // The output of a run of the example, with the output directory cleaned, or null if there's nothing to do.
+    // With --incremental, the output of an earlier run with the same APK and arguments is kept, and otherwise only the
+    // classes the instrumentation changed are written again (see IncrementalApkWriter)
+    static InstrumentationOutput open(String[] args, String example, String androidPlatforms, String apkPath, String outputPath) {
+        IncrementalApkWriter incrementalWriter = IncrementalApkWriter.fromArgs(args, example, androidPlatforms, apkPath, outputPath);
+        if (incrementalWriter != null && incrementalWriter.isUpToDate()) {
+            System.out.println("The instrumented APK " + incrementalWriter.getOutputApk() + " is up to date");
+            return null;
+        }
+        // Clean the outputPath
+        if (incrementalWriter != null) {
+            incrementalWriter.cleanOutputDir();
+        } else {
+            final File[] files = (new File(outputPath)).listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+        }
+        return new InstrumentationOutput(apkPath, outputPath, incrementalWriter);
+    }
+
+    // Transforms the application bodies and writes the instrumented APK, with the --threads and --streaming [--window <n>]
+    // arguments of the example
+    void transformAndWrite(BodyTransformer transformer, String[] args) {
+        transformAndWrite(transformer, InstrumentUtil.getThreads(args), StreamingDexWriter.getWindow(args));
+    }
+
+    // With a window, the APK is transformed and written one class at a time (see StreamingDexWriter), so a large APK fits
+    // in a fixed heap, and Soot's body packs don't run. Otherwise, with threads, the bodies are transformed on a pool of
+    // that size before the packs run, and without, the transformer is added to the "jtp" pack.
+    void transformAndWrite(BodyTransformer transformer, int threads, int window) {
+        if (window > 0) {
+            streamOutput(transformer, threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), window);
+            return;
+        }
+        if (threads > 0)
+            InstrumentUtil.transformApplicationBodies(track(transformer), threads);
+        else
+            PackManager.v().getPack("jtp").add(new Transform("jtp.myLogger", track(transformer)));
+        // Run Soot packs (note that our transformer pack is added to the phase "jtp")
+        PackManager.v().runPacks();
+        // Write the result of packs in outputPath
+        writeOutput();
+    }
+
+    // The transformer, with the classes it changes recorded for --incremental
+    private BodyTransformer track(BodyTransformer transformer) {
+        return incrementalWriter == null ? transformer : incrementalWriter.track(transformer);
+    }
+
+    private void writeOutput() {
+        if (incrementalWriter == null) {
+            PackManager.v().writeOutput();
+            return;
+        }
+        try {
+            incrementalWriter.write();
+        } catch (IOException e) {
+            AndroidUtil.reportError(e);
+        }
+    }
+
+    private void streamOutput(BodyTransformer transformer, int threads, int window) {
+        File apk = new File(apkPath);
+        try {
+            if (incrementalWriter != null)
+                incrementalWriter.deleteStamp();
+            new StreamingDexWriter(transformer, threads, window).write(apk, new File(outputPath, apk.getName()));
+            if (incrementalWriter != null)
+                incrementalWriter.writeStamp();
+        } catch (IOException e) {
+            AndroidUtil.reportError(e);
+        }
+    }
+}
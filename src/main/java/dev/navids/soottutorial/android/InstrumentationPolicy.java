@@ -0,0 +1,212 @@
+package dev.navids.soottutorial.android;
+
+import soot.*;
+import soot.jimple.InvokeExpr;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.annotation.logic.Loop;
+import soot.jimple.toolkits.annotation.logic.LoopFinder;
+import soot.toolkits.graph.BriefUnitGraph;
+
+import java.io.*;
+import java.util.*;
+
+// Chooses how each method is instrumented: with the full probe of an example (e.g. a log call), with a cheap counter
+// (ProbeCounters) or not at all, so that the estimated runtime overhead of the probes stays below `overheadBudget`
+// times the estimated runtime of the app's methods.
+// The cost of one call of a method is estimated by its units, where a unit nested in d loops counts LOOP_WEIGHT^d times.
+// The number of calls comes from a profile of an earlier run for the methods it covers, and otherwise from the call
+// sites of the method in the app, weighted in the same way by their loop nesting.
+// The probes are then given greedily, first counters and then full probes, to the methods where they cost the least
+// relative to the method itself, until the budget is used. Tiny methods called in tight loops are left out first.
+public class InstrumentationPolicy {
+    public enum Probe {NONE, COUNTER, FULL}
+
+    static final int LOOP_WEIGHT = 10;
+    // The estimated cost of each probe, in units
+    static final double COUNTER_COST = 4;
+    static final double FULL_COST = 100;
+
+    private final Map<SootMethod, Probe> probes = new HashMap<>();
+    private final Map<SootMethod, Double> methodCosts = new HashMap<>();
+    private final Map<SootMethod, Double> callCounts = new HashMap<>();
+    private double overhead = 0, appCost = 0;
+    private final MethodIdTable counterIds;
+
+    public InstrumentationPolicy(Collection<SootMethod> methods, double overheadBudget, Map<String, Long> profile) {
+        if (profile == null)
+            profile = Collections.emptyMap();
+        // The bodies the policy loads are released again, so with --streaming they're still loaded one class at a time
+        // when they're transformed. Soot drops the method source of a loaded body, so it's set again.
+        Map<SootMethod, Double> callSites = new HashMap<>();
+        for (SootMethod method : methods) {
+            boolean loaded = method.hasActiveBody();
+            MethodSource source = method.getSource();
+            Body body = method.retrieveActiveBody();
+            methodCosts.put(method, estimateCost(body));
+            countCallSites(body, callSites);
+            if (!loaded && source != null) {
+                method.releaseActiveBody();
+                method.setSource(source);
+            }
+        }
+        for (SootMethod method : methods) {
+            Long profiledCalls = profile.get(method.getSignature());
+            double calls = profiledCalls != null ? profiledCalls : 1 + callSites.getOrDefault(method, 0.0);
+            callCounts.put(method, calls);
+            appCost += calls * methodCosts.get(method);
+            probes.put(method, Probe.NONE);
+        }
+        double budget = overheadBudget * appCost;
+        for (Probe probe : new Probe[]{Probe.COUNTER, Probe.FULL}) {
+            double extraCost = probe == Probe.COUNTER ? COUNTER_COST : FULL_COST - COUNTER_COST;
+            List<SootMethod> candidates = new ArrayList<>();
+            for (SootMethod method : methods) {
+                if (probes.get(method).ordinal() == probe.ordinal() - 1)
+                    candidates.add(method);
+            }
+            candidates.sort(Comparator.comparingDouble((SootMethod method) -> extraCost / methodCosts.get(method))
+                    .thenComparing((SootMethod method) -> method.getSignature()));
+            for (SootMethod method : candidates) {
+                double cost = extraCost * callCounts.get(method);
+                if (overhead + cost > budget)
+                    continue;
+                overhead += cost;
+                probes.put(method, probe);
+            }
+        }
+        counterIds = new MethodIdTable(getMethods(Probe.COUNTER));
+    }
+
+    // The estimated cost of one call of the body: its units, each multiplied by LOOP_WEIGHT^(its loop depth)
+    static double estimateCost(Body body) {
+        Map<Unit, Integer> loopDepths = getLoopDepths(body);
+        double cost = 0;
+        for (Unit unit : body.getUnits())
+            cost += Math.pow(LOOP_WEIGHT, loopDepths.getOrDefault(unit, 0));
+        return cost;
+    }
+
+    static Map<Unit, Integer> getLoopDepths(Body body) {
+        Map<Unit, Integer> loopDepths = new HashMap<>();
+        for (Loop loop : new LoopFinder().getLoops(new BriefUnitGraph(body))) {
+            for (Stmt stmt : loop.getLoopStatements())
+                loopDepths.merge(stmt, 1, Integer::sum);
+        }
+        return loopDepths;
+    }
+
+    // Adds the call sites of each method in the body to callSites, weighted by their loop nesting; virtual calls are
+    // counted for the method the call refers to
+    private static void countCallSites(Body body, Map<SootMethod, Double> callSites) {
+        Map<Unit, Integer> loopDepths = getLoopDepths(body);
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (!stmt.containsInvokeExpr())
+                continue;
+            InvokeExpr invokeExpr = stmt.getInvokeExpr();
+            SootMethod callee = invokeExpr.getMethodRef().tryResolve();
+            if (callee != null)
+                callSites.merge(callee, Math.pow(LOOP_WEIGHT, loopDepths.getOrDefault(unit, 0)), Double::sum);
+        }
+    }
+
+    // A profile from a "counters" run of AndroidClassInjector: the ids of probe_methods.tsv and the "probe <id> <count>"
+    // lines of the app's log. The result maps the signatures of the methods with an id to their number of calls, which is
+    // 0 for the methods without a line.
+    public static Map<String, Long> loadProfile(File probeMethods, File log) throws IOException {
+        Map<Integer, String> idToSignature = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(probeMethods))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] idAndSignature = line.split("\t", 2);
+                if (idAndSignature.length == 2)
+                    idToSignature.put(Integer.parseInt(idAndSignature[0]), idAndSignature[1]);
+            }
+        }
+        Map<String, Long> profile = new HashMap<>();
+        for (String signature : idToSignature.values())
+            profile.put(signature, 0L);
+        for (Map.Entry<Integer, Long> count : ProbeCounters.readCounts(log).entrySet()) {
+            if (idToSignature.containsKey(count.getKey()))
+                profile.merge(idToSignature.get(count.getKey()), count.getValue(), Long::sum);
+        }
+        return profile;
+    }
+
+    public Probe getProbe(SootMethod method) {
+        return probes.getOrDefault(method, Probe.NONE);
+    }
+
+    public List<SootMethod> getMethods(Probe probe) {
+        List<SootMethod> methods = new ArrayList<>();
+        for (Map.Entry<SootMethod, Probe> entry : probes.entrySet()) {
+            if (entry.getValue() == probe)
+                methods.add(entry.getKey());
+        }
+        methods.sort(Comparator.comparing(SootMethod::getSignature));
+        return methods;
+    }
+
+    // The estimated overhead of the chosen probes, relative to the estimated runtime of the methods
+    public double getEstimatedOverhead() {
+        return appCost == 0 ? 0 : overhead / appCost;
+    }
+
+    // Applies `full` to the methods with a full probe and inserts a ProbeCounters increment in the methods with a counter
+    public BodyTransformer getTransformer(BodyTransformer full, String packageName) {
+        BodyTransformer counter = counterIds.size() == 0 ? null : new ProbeCounters(packageName, counterIds).getTransformer();
+        return new BodyTransformer() {
+            @Override
+            protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
+                Probe probe = getProbe(b.getMethod());
+                if (probe == Probe.FULL)
+                    full.transform(b);
+                else if (probe == Probe.COUNTER)
+                    counter.transform(b);
+            }
+        };
+    }
+
+    // The policy of the instrumentation examples' arguments "--overhead <fraction> [--profile <probe_methods.tsv> <log>]",
+    // for their instrumentable methods, or null if there's no --overhead
+    static InstrumentationPolicy fromArgs(String[] args) {
+        double overheadBudget = -1;
+        Map<String, Long> profile = null;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--overhead")) {
+                overheadBudget = Double.parseDouble(args[i + 1]);
+            } else if (args[i].equals("--profile") && i + 2 < args.length) {
+                // Without the profile the budget still holds, only the call counts are less precise
+                try {
+                    profile = loadProfile(new File(args[i + 1]), new File(args[i + 2]));
+                } catch (IOException e) {
+                    System.err.println("Could not read the profile " + args[i + 1] + " " + args[i + 2] + " (" + e.getMessage()
+                            + "), the call counts are estimated from the call sites and loops instead");
+                }
+            }
+        }
+        if (overheadBudget < 0)
+            return null;
+        InstrumentationPolicy policy = new InstrumentationPolicy(MethodIdTable.getInstrumentableMethods(), overheadBudget, profile);
+        System.out.println(String.format("%d methods with full probes, %d with counters and %d without probes (estimated overhead %.1f%%)",
+                policy.getMethods(Probe.FULL).size(), policy.getMethods(Probe.COUNTER).size(), policy.getMethods(Probe.NONE).size(),
+                100 * policy.getEstimatedOverhead()));
+        return policy;
+    }
+
+    // The ids of the methods with a counter
+    public MethodIdTable getCounterIds() {
+        return counterIds;
+    }
+
+    // Writes probe_policy.tsv, with one "<method signature>\t<probe>\t<estimated calls>\t<estimated cost per call>" line
+    // per method, and the ids of the counters in probe_methods.tsv
+    public void writeDecisions(File outputDir) throws IOException {
+        List<SootMethod> methods = new ArrayList<>(probes.keySet());
+        methods.sort(Comparator.comparing(SootMethod::getSignature));
+        try (PrintWriter writer = new PrintWriter(new File(outputDir, "probe_policy.tsv"))) {
+            for (SootMethod method : methods)
+                writer.println(String.format("%s\t%s\t%.0f\t%.0f", method.getSignature(), probes.get(method), callCounts.get(method), methodCosts.get(method)));
+        }
+        counterIds.writeMapping(new File(outputDir, "probe_methods.tsv"));
+    }
+}
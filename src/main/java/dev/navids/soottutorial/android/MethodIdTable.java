@@ -0,0 +1,65 @@
+package dev.navids.soottutorial.android;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Dense ids (0, 1, ...) for the methods an instrumentation probes, so the injected code can refer to a method by an int
+// constant. The ids are assigned before any body is transformed, and the table is only read afterwards, so transformers
+// running in parallel can share it. writeMapping saves the ids to map the collected data back to the methods.
+public class MethodIdTable {
+    private final TObjectIntHashMap<SootMethod> methodToId = new TObjectIntHashMap<>(1024, 0.5f, -1);
+    private final List<SootMethod> methods = new ArrayList<>();
+
+    public MethodIdTable(Collection<SootMethod> methods) {
+        for (SootMethod method : methods) {
+            if (methodToId.get(method) < 0) {
+                methodToId.put(method, this.methods.size());
+                this.methods.add(method);
+            }
+        }
+    }
+
+    // The application methods the probes can be injected in: the concrete methods that are not Android's
+    public static List<SootMethod> getInstrumentableMethods() {
+        List<SootMethod> instrumentableMethods = new ArrayList<>();
+        for (SootClass sootClass : Scene.v().getApplicationClasses()) {
+            if (sootClass.isPhantom())
+                continue;
+            for (SootMethod sootMethod : sootClass.getMethods()) {
+                if (sootMethod.isConcrete() && !AndroidUtil.isAndroidMethod(sootMethod))
+                    instrumentableMethods.add(sootMethod);
+            }
+        }
+        return instrumentableMethods;
+    }
+
+    public int size() {
+        return methods.size();
+    }
+
+    // Returns -1 if the method has no id
+    public int idOf(SootMethod method) {
+        return methodToId.get(method);
+    }
+
+    public SootMethod methodOf(int id) {
+        return methods.get(id);
+    }
+
+    // One "<id>\t<method signature>" line per method
+    public void writeMapping(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (int id = 0; id < methods.size(); id++)
+                writer.println(id + "\t" + methods.get(id).getSignature());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package dev.navids.soottutorial.android;
+
+import soot.Scene;
+import soot.SootClass;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Classifies classes as Android framework, library or app code by the longest matching class name prefix.
+// The prefixes are compiled into a character trie once, and the category of each SootClass is cached by its number,
+// so a lookup does not allocate. A class matching an excluded prefix (or none) gets the default category, which is
+// APP, or LIBRARY when app prefixes are given.
+public class PackageClassifier {
+    public enum Category {
+        FRAMEWORK,
+        LIBRARY,
+        APP
+    }
+
+    public static final List<String> DEFAULT_FRAMEWORK_PREFIXES = Arrays.asList("android.", "com.google.android", "androidx.");
+    public static final List<String> DEFAULT_LIBRARY_PREFIXES = Arrays.asList("java.", "javax.", "dalvik.", "kotlin.", "kotlinx.",
+            "org.json.", "org.w3c.", "org.xml.", "org.xmlpull.", "org.apache.http.");
+
+    private static final Category[] CATEGORIES = Category.values();
+    private static PackageClassifier instance;
+
+    private static class TrieNode {
+        char[] labels = new char[0];
+        TrieNode[] children = new TrieNode[0];
+        // The category of the prefix ending at this node; null if no prefix ends here, defaultCategory if it's excluded
+        Category category;
+
+        TrieNode child(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            return index >= 0 ? children[index] : null;
+        }
+
+        TrieNode getOrAddChild(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            if (index >= 0)
+                return children[index];
+            int insertionPoint = -index - 1;
+            char[] newLabels = new char[labels.length + 1];
+            TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, insertionPoint);
+            System.arraycopy(children, 0, newChildren, 0, insertionPoint);
+            newLabels[insertionPoint] = label;
+            newChildren[insertionPoint] = new TrieNode();
+            System.arraycopy(labels, insertionPoint, newLabels, insertionPoint + 1, labels.length - insertionPoint);
+            System.arraycopy(children, insertionPoint, newChildren, insertionPoint + 1, children.length - insertionPoint);
+            labels = newLabels;
+            children = newChildren;
+            return newChildren[insertionPoint];
+        }
+    }
+
+    private final TrieNode root = new TrieNode();
+    private final Category defaultCategory;
+    // Published through a volatile field, so a lookup takes no lock; the lock is only taken when the Scene changes or
+    // the cache grows. Two threads may race to cache the same class, but they store the same category.
+    private volatile CategoryCache categoryCache = new CategoryCache(null, 0);
+
+    private static class CategoryCache {
+        final Scene scene;
+        // categories[class number] is the category's ordinal + 1, or 0 if not classified yet
+        final byte[] categories;
+
+        CategoryCache(Scene scene, int size) {
+            this(scene, new byte[size]);
+        }
+
+        CategoryCache(Scene scene, byte[] categories) {
+            this.scene = scene;
+            this.categories = categories;
+        }
+    }
+
+    public PackageClassifier(List<String> frameworkPrefixes, List<String> libraryPrefixes, List<String> appPrefixes,
+                             List<String> excludedPrefixes) {
+        this.defaultCategory = appPrefixes.isEmpty() ? Category.APP : Category.LIBRARY;
+        addPrefixes(frameworkPrefixes, Category.FRAMEWORK);
+        addPrefixes(libraryPrefixes, Category.LIBRARY);
+        addPrefixes(appPrefixes, Category.APP);
+        addPrefixes(excludedPrefixes, defaultCategory);
+    }
+
+    public static synchronized PackageClassifier v() {
+        if (instance == null)
+            instance = new PackageClassifier(DEFAULT_FRAMEWORK_PREFIXES, DEFAULT_LIBRARY_PREFIXES,
+                    Collections.emptyList(), Collections.emptyList());
+        return instance;
+    }
+
+    public static synchronized void setDefault(PackageClassifier packageClassifier) {
+        instance = packageClassifier;
+    }
+
+    private void addPrefixes(List<String> prefixes, Category category) {
+        for (String prefix : prefixes) {
+            TrieNode node = root;
+            for (int i = 0; i < prefix.length(); i++)
+                node = node.getOrAddChild(prefix.charAt(i));
+            node.category = category;
+        }
+    }
+
+    public Category classify(String className) {
+        Category category = defaultCategory;
+        TrieNode node = root;
+        for (int i = 0; i < className.length() && node != null; i++) {
+            node = node.child(className.charAt(i));
+            if (node != null && node.category != null)
+                category = node.category;
+        }
+        return category;
+    }
+
+    public Category classify(SootClass sootClass) {
+        int classNumber = sootClass.getNumber();
+        CategoryCache cache = categoryCache;
+        // Class numbers are only meaningful within one Scene
+        if (cache.scene != Scene.v())
+            cache = resetCategoryCache();
+        if (classNumber > 0 && classNumber < cache.categories.length && cache.categories[classNumber] != 0)
+            return CATEGORIES[cache.categories[classNumber] - 1];
+        Category category = classify(sootClass.getName());
+        // Classes that are not added to the Scene yet have no number and are not cached
+        if (classNumber > 0) {
+            if (classNumber >= cache.categories.length)
+                cache = growCategoryCache(cache, classNumber);
+            if (classNumber < cache.categories.length)
+                cache.categories[classNumber] = (byte) (category.ordinal() + 1);
+        }
+        return category;
+    }
+
+    public boolean isFramework(SootClass sootClass) {
+        return classify(sootClass) == Category.FRAMEWORK;
+    }
+
+    private synchronized CategoryCache resetCategoryCache() {
+        Scene scene = Scene.v();
+        if (categoryCache.scene != scene)
+            categoryCache = new CategoryCache(scene, scene.getClassNumberer().size() + 1);
+        return categoryCache;
+    }
+
+    private synchronized CategoryCache growCategoryCache(CategoryCache cache, int classNumber) {
+        // Another thread may have replaced the cache since `cache` was read; a cache of an older Scene is not grown
+        CategoryCache current = categoryCache;
+        if (current.scene != cache.scene)
+            return cache;
+        if (classNumber >= current.categories.length)
+            categoryCache = current = new CategoryCache(current.scene,
+                    Arrays.copyOf(current.categories, Math.max(classNumber + 1, current.categories.length * 2)));
+        return current;
+    }
+}
@@ -0,0 +1,124 @@
+package dev.navids.soottutorial.android;
+
+import soot.*;
+import soot.jimple.spark.pag.AllocNode;
+import soot.jimple.spark.pag.Node;
+import soot.jimple.spark.pag.PAG;
+import soot.jimple.spark.sets.P2SetVisitor;
+import soot.jimple.spark.sets.PointsToSetInternal;
+import soot.toolkits.scalar.Pair;
+
+import java.util.*;
+
+// A caching facade over a points-to analysis. The points-to set of each local is read once from Spark and kept as a
+// sorted array of allocation node numbers, so repeated and batch queries don't go through Spark's sets again.
+// The arrays are shared with the callers and must not be modified. A points-to set that is not Spark's (e.g. of
+// DumbPointerAnalysis) has no allocation nodes; for such locals allocSites returns null and reachingObjects has to
+// be used instead.
+public class PointsToCache {
+    private static PointsToCache instance = null;
+
+    private final PointsToAnalysis pointsToAnalysis;
+    private final Map<Local, int[]> localToAllocSites = new HashMap<>();
+    private final Set<Local> nonSparkLocals = new HashSet<>();
+
+    public PointsToCache(PointsToAnalysis pointsToAnalysis) {
+        this.pointsToAnalysis = pointsToAnalysis;
+    }
+
+    // The cache of the Scene's current points-to analysis; a new one is made when the analysis is replaced
+    public static synchronized PointsToCache v() {
+        if (instance == null || instance.pointsToAnalysis != Scene.v().getPointsToAnalysis())
+            instance = new PointsToCache(Scene.v().getPointsToAnalysis());
+        return instance;
+    }
+
+    public PointsToAnalysis getPointsToAnalysis() {
+        return pointsToAnalysis;
+    }
+
+    public PointsToSet reachingObjects(Local local) {
+        return pointsToAnalysis.reachingObjects(local);
+    }
+
+    // The sorted numbers of the allocation nodes the local may point to, or null if its points-to set is not Spark's
+    public int[] allocSites(Local local) {
+        int[] allocSites = localToAllocSites.get(local);
+        if (allocSites != null || nonSparkLocals.contains(local))
+            return allocSites;
+        PointsToSet pointsToSet = pointsToAnalysis.reachingObjects(local);
+        if (!(pointsToSet instanceof PointsToSetInternal)) {
+            nonSparkLocals.add(local);
+            return null;
+        }
+        allocSites = toSortedArray((PointsToSetInternal) pointsToSet);
+        localToAllocSites.put(local, allocSites);
+        return allocSites;
+    }
+
+    private static int[] toSortedArray(PointsToSetInternal pointsToSet) {
+        int[] allocSites = new int[pointsToSet.size()];
+        int[] count = {0};
+        pointsToSet.forall(new P2SetVisitor() {
+            @Override
+            public void visit(Node n) {
+                allocSites[count[0]++] = n.getNumber();
+            }
+        });
+        int[] result = count[0] == allocSites.length ? allocSites : Arrays.copyOf(allocSites, count[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    public AllocNode getAllocNode(int allocSite) {
+        if (!(pointsToAnalysis instanceof PAG))
+            throw new IllegalStateException("Allocation nodes are only available for Spark's points-to analysis");
+        return ((PAG) pointsToAnalysis).getAllocNodeNumberer().get(allocSite);
+    }
+
+    // The allocation sites of all locals of reference type in the method's active body, in the order of the locals
+    public Map<Local, int[]> allocSites(SootMethod method) {
+        Map<Local, int[]> methodAllocSites = new LinkedHashMap<>();
+        if (!method.hasActiveBody())
+            return methodAllocSites;
+        for (Local local : method.getActiveBody().getLocals()) {
+            if (local.getType() instanceof RefLikeType)
+                methodAllocSites.put(local, allocSites(local));
+        }
+        return methodAllocSites;
+    }
+
+    public boolean mayAlias(Local left, Local right) {
+        int[] leftAllocSites = allocSites(left);
+        int[] rightAllocSites = allocSites(right);
+        if (leftAllocSites == null || rightAllocSites == null)
+            return reachingObjects(left).hasNonEmptyIntersection(reachingObjects(right));
+        return intersects(leftAllocSites, rightAllocSites);
+    }
+
+    // All pairs (i < j) of the given locals that may alias, computed through the equivalence classes of an AliasMatrix
+    public List<Pair<Local, Local>> mayAliasPairs(List<Local> locals) {
+        AliasMatrix aliasMatrix = new AliasMatrix(locals, this);
+        List<Pair<Local, Local>> pairs = new ArrayList<>();
+        for (int i = 0; i < locals.size(); i++) {
+            for (int j = i + 1; j < locals.size(); j++) {
+                if (aliasMatrix.mayAlias(i, j))
+                    pairs.add(new Pair<>(locals.get(i), locals.get(j)));
+            }
+        }
+        return pairs;
+    }
+
+    public static boolean intersects(int[] left, int[] right) {
+        int i = 0, j = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] == right[j])
+                return true;
+            if (left[i] < right[j])
+                i++;
+            else
+                j++;
+        }
+        return false;
+    }
+}
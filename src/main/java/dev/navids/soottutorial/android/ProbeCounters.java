@@ -0,0 +1,245 @@
+package dev.navids.soottutorial.android;
+
+import soot.*;
+import soot.jimple.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+// A cheaper probe than incrementAndLog: each instrumented method gets a dense id and its probe is only
+// "counters[id]++" on a static long[] of an injected class, so a call neither logs nor allocates.
+// The injected class (which extends Thread) allocates the array in its <clinit> and starts a daemon thread that dumps
+// the counters every DUMP_INTERVAL_MILLIS, since Android usually kills an app's process without running its shutdown
+// hooks; a shutdown hook dumps them once more for the processes that do exit. dump() can also be called on demand.
+// A dump logs one "probe <id> <count>" line per counter that changed since the last dump, with the calls since then
+// (with Log.i, or System.out.println outside Android), so the counts of the lines of an id add up to its total
+// (see readCounts). The ids can be mapped back to methods with the MethodIdTable's mapping file.
+public class ProbeCounters {
+    public static final String CLASS_NAME = "SootTutorialProbeCounters";
+    public static final long DUMP_INTERVAL_MILLIS = 5000;
+
+    private final MethodIdTable methodIdTable;
+    private final int size;
+    private final SootClass countersClass;
+    private final SootField countersField;
+    private final SootFieldRef countersFieldRef;
+    // The counts of the last dump
+    private final SootFieldRef dumpedFieldRef;
+    private final SootFieldRef periodicFieldRef;
+    private final SootMethod dumpMethod;
+
+    // The size of the array is the number of ids, so the table must be complete before <clinit> is generated
+    public ProbeCounters(String packageName, MethodIdTable methodIdTable) {
+        this(packageName, methodIdTable, methodIdTable.size());
+    }
+
+    // Counters that don't belong to methods (e.g. EdgeProfiler's), which are only incremented with generateIncrement
+    public ProbeCounters(String packageName, int size) {
+        this(packageName, null, size);
+    }
+
+    private ProbeCounters(String packageName, MethodIdTable methodIdTable, int size) {
+        this.methodIdTable = methodIdTable;
+        this.size = size;
+        countersClass = new SootClass(packageName + "." + CLASS_NAME, Modifier.PUBLIC);
+        countersClass.setSuperclass(Scene.v().getSootClass("java.lang.Thread"));
+        Scene.v().addClass(countersClass);
+        countersClass.setApplicationClass();
+        countersField = new SootField("counters", ArrayType.v(LongType.v(), 1), Modifier.PUBLIC | Modifier.STATIC);
+        countersClass.addField(countersField);
+        countersFieldRef = countersField.makeRef();
+        SootField dumpedField = new SootField("dumped", countersField.getType(), Modifier.STATIC);
+        countersClass.addField(dumpedField);
+        dumpedFieldRef = dumpedField.makeRef();
+        SootField periodicField = new SootField("periodic", BooleanType.v(), 0);
+        countersClass.addField(periodicField);
+        periodicFieldRef = periodicField.makeRef();
+        dumpMethod = addDumpMethod();
+        addConstructor();
+        addRunMethod();
+        addStaticInitializer();
+    }
+
+    public SootClass getCountersClass() {
+        return countersClass;
+    }
+
+    public MethodIdTable getMethodIdTable() {
+        return methodIdTable;
+    }
+
+    // The counts of the "probe <id> <count>" lines of a log, summed by id
+    public static Map<Integer, Long> readCounts(File log) throws IOException {
+        Map<Integer, Long> counts = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(log))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int probe = line.indexOf("probe ");
+                if (probe < 0)
+                    continue;
+                String[] idAndCount = line.substring(probe + "probe ".length()).trim().split(" ");
+                if (idAndCount.length == 2)
+                    counts.merge(Integer.parseInt(idAndCount[0]), Long.parseLong(idAndCount[1]), Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    // The statements of "counters[id]++"
+    public List<Unit> generateIncrement(Body body, int id) {
+        Local arrayLocal = InstrumentUtil.generateNewLocal(body, countersField.getType());
+        Local countLocal = InstrumentUtil.generateNewLocal(body, LongType.v());
+        ArrayRef arrayRef = Jimple.v().newArrayRef(arrayLocal, IntConstant.v(id));
+        return Arrays.asList(
+                Jimple.v().newAssignStmt(arrayLocal, Jimple.v().newStaticFieldRef(countersFieldRef)),
+                Jimple.v().newAssignStmt(countLocal, arrayRef),
+                Jimple.v().newAssignStmt(countLocal, Jimple.v().newAddExpr(countLocal, LongConstant.v(1))),
+                Jimple.v().newAssignStmt(Jimple.v().newArrayRef(arrayLocal, IntConstant.v(id)), countLocal));
+    }
+
+    // Inserts the increment of the method's counter at its beginning; the methods without an id are left as they are
+    public BodyTransformer getTransformer() {
+        return new BodyTransformer() {
+            @Override
+            protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
+                int id = methodIdTable.idOf(b.getMethod());
+                if (id < 0)
+                    return;
+                b.getUnits().insertBefore(generateIncrement(b, id), ((JimpleBody) b).getFirstNonIdentityStmt());
+                b.validate();
+            }
+        };
+    }
+
+    private SootMethod addMethod(String name, int modifiers, Type... parameterTypes) {
+        SootMethod method = new SootMethod(name, Arrays.asList(parameterTypes), VoidType.v(), modifiers);
+        countersClass.addMethod(method);
+        method.setActiveBody(Jimple.v().newBody(method));
+        return method;
+    }
+
+    // static { counters = new long[size]; dumped = new long[size]; start the dumper (a daemon); register the last dump as a shutdown hook }
+    private void addStaticInitializer() {
+        SootMethod clinit = addMethod(SootMethod.staticInitializerName, Modifier.STATIC);
+        Body body = clinit.getActiveBody();
+        UnitPatchingChain units = body.getUnits();
+        Local arrayLocal = InstrumentUtil.generateNewLocal(body, countersField.getType());
+        for (SootFieldRef arrayRef : new SootFieldRef[]{countersFieldRef, dumpedFieldRef}) {
+            units.add(Jimple.v().newAssignStmt(arrayLocal, Jimple.v().newNewArrayExpr(LongType.v(), IntConstant.v(size))));
+            units.add(Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(arrayRef), arrayLocal));
+        }
+        SootMethodRef initRef = countersClass.getMethod(SootMethod.constructorName, Collections.singletonList(BooleanType.v())).makeRef();
+        SootClass threadClass = countersClass.getSuperclass();
+        Local dumperLocal = InstrumentUtil.generateNewLocal(body, countersClass.getType());
+        units.add(Jimple.v().newAssignStmt(dumperLocal, Jimple.v().newNewExpr(countersClass.getType())));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(dumperLocal, initRef, IntConstant.v(1))));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(dumperLocal,
+                Scene.v().makeMethodRef(threadClass, "setDaemon", Collections.singletonList(BooleanType.v()), VoidType.v(), false), IntConstant.v(1))));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(dumperLocal,
+                Scene.v().makeMethodRef(threadClass, "start", Collections.emptyList(), VoidType.v(), false))));
+        SootClass runtimeClass = Scene.v().getSootClass("java.lang.Runtime");
+        Local runtimeLocal = InstrumentUtil.generateNewLocal(body, runtimeClass.getType());
+        units.add(Jimple.v().newAssignStmt(runtimeLocal, Jimple.v().newStaticInvokeExpr(
+                Scene.v().makeMethodRef(runtimeClass, "getRuntime", Collections.emptyList(), runtimeClass.getType(), true))));
+        Local hookLocal = InstrumentUtil.generateNewLocal(body, countersClass.getType());
+        units.add(Jimple.v().newAssignStmt(hookLocal, Jimple.v().newNewExpr(countersClass.getType())));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(hookLocal, initRef, IntConstant.v(0))));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(runtimeLocal, Scene.v().makeMethodRef(runtimeClass,
+                "addShutdownHook", Collections.singletonList(threadClass.getType()), VoidType.v(), false), hookLocal)));
+        units.add(Jimple.v().newReturnVoidStmt());
+        body.validate();
+    }
+
+    // public <init>(boolean periodic) { super(); this.periodic = periodic; }
+    private void addConstructor() {
+        SootMethod init = addMethod(SootMethod.constructorName, Modifier.PUBLIC, BooleanType.v());
+        JimpleBody body = (JimpleBody) init.getActiveBody();
+        body.insertIdentityStmts();
+        body.getUnits().add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(body.getThisLocal(),
+                Scene.v().makeMethodRef(countersClass.getSuperclass(), SootMethod.constructorName, Collections.emptyList(), VoidType.v(), false))));
+        body.getUnits().add(Jimple.v().newAssignStmt(Jimple.v().newInstanceFieldRef(body.getThisLocal(), periodicFieldRef), body.getParameterLocal(0)));
+        body.getUnits().add(Jimple.v().newReturnVoidStmt());
+        body.validate();
+    }
+
+    // public void run() { if (periodic) while (true) { Thread.sleep(DUMP_INTERVAL_MILLIS); dump(); } else dump(); }
+    private void addRunMethod() {
+        SootMethod run = addMethod("run", Modifier.PUBLIC);
+        JimpleBody body = (JimpleBody) run.getActiveBody();
+        body.insertIdentityStmts();
+        UnitPatchingChain units = body.getUnits();
+        Local periodicLocal = InstrumentUtil.generateNewLocal(body, BooleanType.v());
+        Unit dumpOnceStmt = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(dumpMethod.makeRef()));
+        units.add(Jimple.v().newAssignStmt(periodicLocal, Jimple.v().newInstanceFieldRef(body.getThisLocal(), periodicFieldRef)));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(periodicLocal, IntConstant.v(0)), dumpOnceStmt));
+        Unit sleepStmt = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(Scene.v().makeMethodRef(countersClass.getSuperclass(),
+                "sleep", Collections.singletonList(LongType.v()), VoidType.v(), true), LongConstant.v(DUMP_INTERVAL_MILLIS)));
+        units.add(sleepStmt);
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(dumpMethod.makeRef())));
+        units.add(Jimple.v().newGotoStmt(sleepStmt));
+        units.add(dumpOnceStmt);
+        units.add(Jimple.v().newReturnVoidStmt());
+        body.validate();
+    }
+
+    // public static void dump() {
+    //     synchronized (SootTutorialProbeCounters.class) {
+    //         for (int i = 0; i < counters.length; i++) {
+    //             long count = counters[i];
+    //             if (count != dumped[i]) { log("probe " + i + " " + (count - dumped[i])); dumped[i] = count; }
+    //         }
+    //     }
+    // }
+    // The lock keeps the dumper and the shutdown hook from logging the same calls twice
+    private SootMethod addDumpMethod() {
+        SootMethod dump = addMethod("dump", Modifier.PUBLIC | Modifier.STATIC);
+        JimpleBody body = (JimpleBody) dump.getActiveBody();
+        UnitPatchingChain units = body.getUnits();
+        Local lockLocal = InstrumentUtil.generateNewLocal(body, RefType.v("java.lang.Class"));
+        Local arrayLocal = InstrumentUtil.generateNewLocal(body, countersField.getType());
+        Local dumpedLocal = InstrumentUtil.generateNewLocal(body, countersField.getType());
+        Local lengthLocal = InstrumentUtil.generateNewLocal(body, IntType.v());
+        Local indexLocal = InstrumentUtil.generateNewLocal(body, IntType.v());
+        Local countLocal = InstrumentUtil.generateNewLocal(body, LongType.v());
+        Local deltaLocal = InstrumentUtil.generateNewLocal(body, LongType.v());
+        Local comparisonLocal = InstrumentUtil.generateNewLocal(body, IntType.v());
+        Local exceptionLocal = InstrumentUtil.generateNewLocal(body, RefType.v("java.lang.Throwable"));
+        Unit exitMonitorStmt = Jimple.v().newExitMonitorStmt(lockLocal);
+        Unit incrementStmt = Jimple.v().newAssignStmt(indexLocal, Jimple.v().newAddExpr(indexLocal, IntConstant.v(1)));
+
+        units.add(Jimple.v().newAssignStmt(lockLocal, ClassConstant.fromType(countersClass.getType())));
+        units.add(Jimple.v().newEnterMonitorStmt(lockLocal));
+        Unit firstLockedStmt = Jimple.v().newAssignStmt(arrayLocal, Jimple.v().newStaticFieldRef(countersFieldRef));
+        units.add(firstLockedStmt);
+        units.add(Jimple.v().newAssignStmt(dumpedLocal, Jimple.v().newStaticFieldRef(dumpedFieldRef)));
+        units.add(Jimple.v().newAssignStmt(lengthLocal, Jimple.v().newLengthExpr(arrayLocal)));
+        units.add(Jimple.v().newAssignStmt(indexLocal, IntConstant.v(0)));
+        Unit loopHead = Jimple.v().newIfStmt(Jimple.v().newGeExpr(indexLocal, lengthLocal), exitMonitorStmt);
+        units.add(loopHead);
+        units.add(Jimple.v().newAssignStmt(countLocal, Jimple.v().newArrayRef(arrayLocal, indexLocal)));
+        units.add(Jimple.v().newAssignStmt(deltaLocal, Jimple.v().newArrayRef(dumpedLocal, indexLocal)));
+        units.add(Jimple.v().newAssignStmt(deltaLocal, Jimple.v().newSubExpr(countLocal, deltaLocal)));
+        units.add(Jimple.v().newAssignStmt(comparisonLocal, Jimple.v().newCmpExpr(deltaLocal, LongConstant.v(0))));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(comparisonLocal, IntConstant.v(0)), incrementStmt));
+        List<Unit> message = new ArrayList<>();
+        Value indexString = InstrumentUtil.toString(body, indexLocal, message);
+        Value deltaString = InstrumentUtil.toString(body, deltaLocal, message);
+        units.addAll(message);
+        units.addAll(InstrumentUtil.generateConcatLogStmts(body, Arrays.asList(StringConstant.v("probe "), indexString, StringConstant.v(" "), deltaString)));
+        units.add(Jimple.v().newAssignStmt(Jimple.v().newArrayRef(dumpedLocal, indexLocal), countLocal));
+        units.add(incrementStmt);
+        units.add(Jimple.v().newGotoStmt(loopHead));
+        units.add(exitMonitorStmt);
+        units.add(Jimple.v().newReturnVoidStmt());
+        // The lock is released if logging throws
+        Unit handlerStmt = Jimple.v().newIdentityStmt(exceptionLocal, Jimple.v().newCaughtExceptionRef());
+        units.add(handlerStmt);
+        units.add(Jimple.v().newExitMonitorStmt(lockLocal));
+        units.add(Jimple.v().newThrowStmt(exceptionLocal));
+        body.getTraps().add(Jimple.v().newTrap(Scene.v().getSootClass("java.lang.Throwable"), firstLockedStmt, exitMonitorStmt, handlerStmt));
+        body.validate();
+        return dump;
+    }
+}
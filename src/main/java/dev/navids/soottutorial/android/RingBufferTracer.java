@@ -0,0 +1,263 @@
+package dev.navids.soottutorial.android;
+
+import soot.*;
+import soot.jimple.*;
+
+import java.util.*;
+
+// A tracing mode that is cheaper than printing at each method entry: the probe of a method is a static call of
+// record(<method id>), which appends the id to an int[] ring buffer of the injected class, without any I/O, lock or
+// allocation. A daemon thread of the injected class flushes the buffer every flushIntervalMillis, in batches of
+// "trace <id> <id> ..." lines (with Log.i, or System.out.println outside Android), and a shutdown hook flushes what's
+// left. If the app records more than `capacity` ids between two flushes, the oldest ones are overwritten and a
+// "trace dropped <n>" line is logged instead.
+// To trace realistic workloads, the calls can be sampled: only one in `sampleRate` calls of each method is recorded,
+// and each method records at most `budget` ids (if budget > 0). The counters and the buffer position are not
+// synchronized, so records of threads calling at the same time may overwrite each other.
+public class RingBufferTracer {
+    public static final String CLASS_NAME = "SootTutorialRingBuffer";
+    // The number of ids in one logged line
+    static final int BATCH_SIZE = 64;
+
+    private final MethodIdTable methodIdTable;
+    private final int capacity;
+    private final int sampleRate;
+    private final int budget;
+    private final long flushIntervalMillis;
+    private final SootClass tracerClass;
+    private final SootFieldRef bufferRef, positionRef, flushedRef, callsRef, recordedRef, periodicRef;
+    private final SootMethodRef threadInitRef, recordRef, flushRef;
+
+    public RingBufferTracer(String packageName, MethodIdTable methodIdTable, int capacity, int sampleRate, int budget, long flushIntervalMillis) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("The capacity of the ring buffer must be a power of two");
+        if (sampleRate < 1)
+            throw new IllegalArgumentException("The sample rate must be at least 1");
+        this.methodIdTable = methodIdTable;
+        this.capacity = capacity;
+        this.sampleRate = sampleRate;
+        this.budget = budget;
+        this.flushIntervalMillis = flushIntervalMillis;
+        tracerClass = new SootClass(packageName + "." + CLASS_NAME, Modifier.PUBLIC);
+        tracerClass.setSuperclass(Scene.v().getSootClass("java.lang.Thread"));
+        Scene.v().addClass(tracerClass);
+        tracerClass.setApplicationClass();
+        ArrayType intArrayType = ArrayType.v(IntType.v(), 1);
+        bufferRef = addField("buffer", intArrayType, Modifier.STATIC);
+        positionRef = addField("position", IntType.v(), Modifier.STATIC);
+        flushedRef = addField("flushed", IntType.v(), Modifier.STATIC);
+        callsRef = addField("calls", intArrayType, Modifier.STATIC);
+        recordedRef = addField("recorded", intArrayType, Modifier.STATIC);
+        periodicRef = addField("periodic", BooleanType.v(), 0);
+        threadInitRef = Scene.v().makeMethodRef(tracerClass.getSuperclass(), SootMethod.constructorName, Collections.emptyList(), VoidType.v(), false);
+        recordRef = addRecordMethod().makeRef();
+        flushRef = addFlushMethod().makeRef();
+        addConstructor();
+        addRunMethod();
+        addStaticInitializer();
+    }
+
+    public SootClass getTracerClass() {
+        return tracerClass;
+    }
+
+    public MethodIdTable getMethodIdTable() {
+        return methodIdTable;
+    }
+
+    // The statement of "record(id)"
+    public Unit generateRecord(int id) {
+        return Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(recordRef, IntConstant.v(id)));
+    }
+
+    // Inserts the call of record at the beginning of the methods with an id
+    public BodyTransformer getTransformer() {
+        return new BodyTransformer() {
+            @Override
+            protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
+                int id = methodIdTable.idOf(b.getMethod());
+                if (id < 0)
+                    return;
+                b.getUnits().insertBefore(generateRecord(id), ((JimpleBody) b).getFirstNonIdentityStmt());
+                b.validate();
+            }
+        };
+    }
+
+    private SootFieldRef addField(String name, Type type, int modifiers) {
+        SootField field = new SootField(name, type, modifiers);
+        tracerClass.addField(field);
+        return field.makeRef();
+    }
+
+    private JimpleBody addMethod(String name, List<Type> parameterTypes, int modifiers) {
+        SootMethod method = new SootMethod(name, parameterTypes, VoidType.v(), modifiers);
+        tracerClass.addMethod(method);
+        JimpleBody body = Jimple.v().newBody(method);
+        method.setActiveBody(body);
+        body.insertIdentityStmts();
+        return body;
+    }
+
+    private static Local newLocal(Body body, Type type) {
+        return InstrumentUtil.generateNewLocal(body, type);
+    }
+
+    // public static void record(int id)
+    private SootMethod addRecordMethod() {
+        JimpleBody body = addMethod("record", Collections.singletonList(IntType.v()), Modifier.PUBLIC | Modifier.STATIC);
+        UnitPatchingChain units = body.getUnits();
+        Local idLocal = body.getParameterLocal(0);
+        Unit returnStmt = Jimple.v().newReturnVoidStmt();
+        Local arrayLocal = newLocal(body, ArrayType.v(IntType.v(), 1));
+        Local countLocal = newLocal(body, IntType.v());
+        Local tmpLocal = newLocal(body, IntType.v());
+        if (sampleRate > 1) {
+            // if (calls[id]++ % sampleRate != 0) return;
+            units.add(Jimple.v().newAssignStmt(arrayLocal, Jimple.v().newStaticFieldRef(callsRef)));
+            units.add(Jimple.v().newAssignStmt(countLocal, Jimple.v().newArrayRef(arrayLocal, idLocal)));
+            units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newAddExpr(countLocal, IntConstant.v(1))));
+            units.add(Jimple.v().newAssignStmt(Jimple.v().newArrayRef(arrayLocal, idLocal), tmpLocal));
+            units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newRemExpr(countLocal, IntConstant.v(sampleRate))));
+            units.add(Jimple.v().newIfStmt(Jimple.v().newNeExpr(tmpLocal, IntConstant.v(0)), returnStmt));
+        }
+        if (budget > 0) {
+            // if (recorded[id] >= budget) return; recorded[id]++;
+            units.add(Jimple.v().newAssignStmt(arrayLocal, Jimple.v().newStaticFieldRef(recordedRef)));
+            units.add(Jimple.v().newAssignStmt(countLocal, Jimple.v().newArrayRef(arrayLocal, idLocal)));
+            units.add(Jimple.v().newIfStmt(Jimple.v().newGeExpr(countLocal, IntConstant.v(budget)), returnStmt));
+            units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newAddExpr(countLocal, IntConstant.v(1))));
+            units.add(Jimple.v().newAssignStmt(Jimple.v().newArrayRef(arrayLocal, idLocal), tmpLocal));
+        }
+        // buffer[position++ & (capacity - 1)] = id;
+        Local positionLocal = newLocal(body, IntType.v());
+        units.add(Jimple.v().newAssignStmt(positionLocal, Jimple.v().newStaticFieldRef(positionRef)));
+        units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newAddExpr(positionLocal, IntConstant.v(1))));
+        units.add(Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(positionRef), tmpLocal));
+        units.add(Jimple.v().newAssignStmt(arrayLocal, Jimple.v().newStaticFieldRef(bufferRef)));
+        units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newAndExpr(positionLocal, IntConstant.v(capacity - 1))));
+        units.add(Jimple.v().newAssignStmt(Jimple.v().newArrayRef(arrayLocal, tmpLocal), idLocal));
+        units.add(returnStmt);
+        body.validate();
+        return body.getMethod();
+    }
+
+    // public static synchronized void flush(): logs the ids from `flushed` to `position` in batches
+    private SootMethod addFlushMethod() {
+        JimpleBody body = addMethod("flush", Collections.emptyList(), Modifier.PUBLIC | Modifier.STATIC | Modifier.SYNCHRONIZED);
+        UnitPatchingChain units = body.getUnits();
+        InstrumentRefs refs = InstrumentRefs.v();
+        Local bufferLocal = newLocal(body, ArrayType.v(IntType.v(), 1));
+        Local endLocal = newLocal(body, IntType.v());
+        Local startLocal = newLocal(body, IntType.v());
+        Local tmpLocal = newLocal(body, IntType.v());
+        Local batchLocal = newLocal(body, IntType.v());
+        Local builderLocal = newLocal(body, refs.stringBuilderType);
+        Local messageLocal = newLocal(body, refs.stringType);
+        Unit doneStmt = Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(flushedRef), endLocal);
+
+        units.add(Jimple.v().newAssignStmt(bufferLocal, Jimple.v().newStaticFieldRef(bufferRef)));
+        units.add(Jimple.v().newAssignStmt(endLocal, Jimple.v().newStaticFieldRef(positionRef)));
+        units.add(Jimple.v().newAssignStmt(startLocal, Jimple.v().newStaticFieldRef(flushedRef)));
+        // The positions wrap around after 2^31 records, so they are only compared through their difference.
+        // The ids that were overwritten before this flush are only counted.
+        Unit batchesStmt = Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newSubExpr(endLocal, startLocal));
+        units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newSubExpr(endLocal, startLocal)));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newLeExpr(tmpLocal, IntConstant.v(capacity)), batchesStmt));
+        units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newSubExpr(tmpLocal, IntConstant.v(capacity))));
+        List<Unit> droppedStmts = new ArrayList<>();
+        Value droppedString = InstrumentUtil.toString(body, tmpLocal, droppedStmts);
+        units.addAll(droppedStmts);
+        units.addAll(InstrumentUtil.generateConcatLogStmts(body, Arrays.asList(StringConstant.v("trace dropped "), droppedString)));
+        units.add(Jimple.v().newAssignStmt(startLocal, Jimple.v().newSubExpr(endLocal, IntConstant.v(capacity))));
+        // One line per batch: "trace <id> <id> ..."
+        units.add(batchesStmt);
+        units.add(Jimple.v().newIfStmt(Jimple.v().newLeExpr(tmpLocal, IntConstant.v(0)), doneStmt));
+        units.add(Jimple.v().newAssignStmt(builderLocal, Jimple.v().newNewExpr(refs.stringBuilderType)));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(builderLocal, refs.stringBuilderInit, StringConstant.v("trace"))));
+        units.add(Jimple.v().newAssignStmt(batchLocal, IntConstant.v(0)));
+        Unit logStmt = Jimple.v().newAssignStmt(messageLocal, Jimple.v().newVirtualInvokeExpr(builderLocal, refs.stringBuilderToString));
+        Unit batchLoopStmt = Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newSubExpr(endLocal, startLocal));
+        units.add(batchLoopStmt);
+        units.add(Jimple.v().newIfStmt(Jimple.v().newLeExpr(tmpLocal, IntConstant.v(0)), logStmt));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newGeExpr(batchLocal, IntConstant.v(BATCH_SIZE)), logStmt));
+        units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newAndExpr(startLocal, IntConstant.v(capacity - 1))));
+        units.add(Jimple.v().newAssignStmt(tmpLocal, Jimple.v().newArrayRef(bufferLocal, tmpLocal)));
+        List<Unit> idStmts = new ArrayList<>();
+        Value idString = InstrumentUtil.toString(body, tmpLocal, idStmts);
+        units.addAll(idStmts);
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(builderLocal, refs.stringBuilderAppend, StringConstant.v(" "))));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(builderLocal, refs.stringBuilderAppend, idString)));
+        units.add(Jimple.v().newAssignStmt(startLocal, Jimple.v().newAddExpr(startLocal, IntConstant.v(1))));
+        units.add(Jimple.v().newAssignStmt(batchLocal, Jimple.v().newAddExpr(batchLocal, IntConstant.v(1))));
+        units.add(Jimple.v().newGotoStmt(batchLoopStmt));
+        units.add(logStmt);
+        units.addAll(InstrumentUtil.generateConcatLogStmts(body, Collections.singletonList(messageLocal)));
+        units.add(Jimple.v().newGotoStmt(batchesStmt));
+        units.add(doneStmt);
+        units.add(Jimple.v().newReturnVoidStmt());
+        body.validate();
+        return body.getMethod();
+    }
+
+    // public <init>(boolean periodic) { super(); this.periodic = periodic; }
+    private void addConstructor() {
+        JimpleBody body = addMethod(SootMethod.constructorName, Collections.singletonList(BooleanType.v()), Modifier.PUBLIC);
+        UnitPatchingChain units = body.getUnits();
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(body.getThisLocal(), threadInitRef)));
+        units.add(Jimple.v().newAssignStmt(Jimple.v().newInstanceFieldRef(body.getThisLocal(), periodicRef), body.getParameterLocal(0)));
+        units.add(Jimple.v().newReturnVoidStmt());
+        body.validate();
+    }
+
+    // public void run() { if (periodic) while (true) { Thread.sleep(flushIntervalMillis); flush(); } else flush(); }
+    private void addRunMethod() {
+        JimpleBody body = addMethod("run", Collections.emptyList(), Modifier.PUBLIC);
+        UnitPatchingChain units = body.getUnits();
+        Local periodicLocal = newLocal(body, BooleanType.v());
+        Unit flushOnceStmt = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(flushRef));
+        units.add(Jimple.v().newAssignStmt(periodicLocal, Jimple.v().newInstanceFieldRef(body.getThisLocal(), periodicRef)));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(periodicLocal, IntConstant.v(0)), flushOnceStmt));
+        Unit sleepStmt = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(Scene.v().makeMethodRef(tracerClass.getSuperclass(),
+                "sleep", Collections.singletonList(LongType.v()), VoidType.v(), true), LongConstant.v(flushIntervalMillis)));
+        units.add(sleepStmt);
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(flushRef)));
+        units.add(Jimple.v().newGotoStmt(sleepStmt));
+        units.add(flushOnceStmt);
+        units.add(Jimple.v().newReturnVoidStmt());
+        body.validate();
+    }
+
+    // static { allocate the arrays; start the flusher (a daemon); register the final flush as a shutdown hook }
+    private void addStaticInitializer() {
+        JimpleBody body = addMethod(SootMethod.staticInitializerName, Collections.emptyList(), Modifier.STATIC);
+        UnitPatchingChain units = body.getUnits();
+        Local arrayLocal = newLocal(body, ArrayType.v(IntType.v(), 1));
+        units.add(Jimple.v().newAssignStmt(arrayLocal, Jimple.v().newNewArrayExpr(IntType.v(), IntConstant.v(capacity))));
+        units.add(Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(bufferRef), arrayLocal));
+        for (SootFieldRef counterRef : new SootFieldRef[]{callsRef, recordedRef}) {
+            units.add(Jimple.v().newAssignStmt(arrayLocal, Jimple.v().newNewArrayExpr(IntType.v(), IntConstant.v(methodIdTable.size()))));
+            units.add(Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(counterRef), arrayLocal));
+        }
+        SootMethodRef initRef = Scene.v().makeMethodRef(tracerClass, SootMethod.constructorName, Collections.singletonList(BooleanType.v()), VoidType.v(), false);
+        SootClass threadClass = tracerClass.getSuperclass();
+        Local flusherLocal = newLocal(body, tracerClass.getType());
+        units.add(Jimple.v().newAssignStmt(flusherLocal, Jimple.v().newNewExpr(tracerClass.getType())));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(flusherLocal, initRef, IntConstant.v(1))));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(flusherLocal,
+                Scene.v().makeMethodRef(threadClass, "setDaemon", Collections.singletonList(BooleanType.v()), VoidType.v(), false), IntConstant.v(1))));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(flusherLocal,
+                Scene.v().makeMethodRef(threadClass, "start", Collections.emptyList(), VoidType.v(), false))));
+        SootClass runtimeClass = Scene.v().getSootClass("java.lang.Runtime");
+        Local runtimeLocal = newLocal(body, runtimeClass.getType());
+        Local hookLocal = newLocal(body, tracerClass.getType());
+        units.add(Jimple.v().newAssignStmt(hookLocal, Jimple.v().newNewExpr(tracerClass.getType())));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(hookLocal, initRef, IntConstant.v(0))));
+        units.add(Jimple.v().newAssignStmt(runtimeLocal, Jimple.v().newStaticInvokeExpr(
+                Scene.v().makeMethodRef(runtimeClass, "getRuntime", Collections.emptyList(), runtimeClass.getType(), true))));
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(runtimeLocal, Scene.v().makeMethodRef(runtimeClass,
+                "addShutdownHook", Collections.singletonList(threadClass.getType()), VoidType.v(), false), hookLocal)));
+        units.add(Jimple.v().newReturnVoidStmt());
+        body.validate();
+    }
+}
@@ -0,0 +1,245 @@
+package dev.navids.soottutorial.android;
+
+import dev.navids.soottutorial.callgraph.CallGraphFile;
+import dev.navids.soottutorial.callgraph.CallGraphWriter;
+import soot.*;
+import soot.jimple.infoflow.InfoflowConfiguration;
+import soot.jimple.infoflow.android.SetupApplication;
+import soot.jimple.toolkits.callgraph.CallGraph;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// The facts a FlowDroid run computes in constructCallgraph(), saved on disk so the next runs on the same APK, platform
+// jar and callgraph algorithm can skip it: the entry point classes, the dummy main method, the callgraph (in
+// CallGraphWriter's format) and the allocation sites of the reference locals of the application methods.
+// Soot's Scene (the classes and bodies) is not part of the snapshot and cannot be restored from it, so a restored
+// snapshot answers questions by signatures and names; analyses that need SootMethods or bodies still have to set up
+// FlowDroid.
+public class SetupSnapshot {
+    private static final int VERSION = 1;
+    private static final String CALLGRAPH_FILE = "callgraph.bin";
+    private static final String FACTS_FILE = "facts.bin";
+
+    private final List<String> entryPointClasses;
+    private final String dummyMainSignature;
+    // "<method signature>\t<local name>" -> the ids of its allocation sites, and its type
+    private final Map<String, int[]> localAllocSites;
+    private final Map<String, String> localTypes;
+    // Each allocation site is stored as its method's signature and its allocation expression
+    private final List<String[]> allocSites;
+    private CallGraphFile callGraphFile = null;
+    private final File directory;
+    private boolean restored = false;
+
+    private SetupSnapshot(File directory, List<String> entryPointClasses, String dummyMainSignature,
+                          Map<String, int[]> localAllocSites, Map<String, String> localTypes, List<String[]> allocSites) {
+        this.directory = directory;
+        this.entryPointClasses = entryPointClasses;
+        this.dummyMainSignature = dummyMainSignature;
+        this.localAllocSites = localAllocSites;
+        this.localTypes = localTypes;
+        this.allocSites = allocSites;
+    }
+
+    // A snapshot is identified by the content of the APK, the platform jar FlowDroid picks for it, and the algorithm
+    public static String computeKey(String apkPath, String androidPlatforms, InfoflowConfiguration.CallgraphAlgorithm cgAlgorithm) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new BufferedInputStream(new FileInputStream(apkPath))) {
+                byte[] buffer = new byte[1 << 16];
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                    digest.update(buffer, 0, read);
+            }
+            File platformJar = new File(Scene.v().getAndroidJarPath(androidPlatforms, apkPath));
+            digest.update(String.format("%s|%d|%d|%s|%d", platformJar.getAbsolutePath(), platformJar.length(),
+                    platformJar.lastModified(), cgAlgorithm, VERSION).getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest())
+                key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Restores the snapshot of the APK from snapshotRoot; if there is none, FlowDroid builds the callgraph and its
+    // snapshot is saved for the next runs
+    public static SetupSnapshot getOrCreate(File snapshotRoot, String apkPath, String androidPlatforms,
+                                            InfoflowConfiguration.CallgraphAlgorithm cgAlgorithm) throws IOException {
+        File directory = new File(snapshotRoot, computeKey(apkPath, androidPlatforms, cgAlgorithm));
+        SetupSnapshot snapshot = load(directory);
+        if (snapshot != null)
+            return snapshot;
+        SetupApplication app = new SetupApplication(AndroidUtil.getFlowDroidConfig(apkPath, androidPlatforms, cgAlgorithm));
+        app.constructCallgraph();
+        List<String> entryPointClasses = new ArrayList<>();
+        for (SootClass entryPointClass : app.getEntrypointClasses())
+            entryPointClasses.add(entryPointClass.getName());
+        return save(directory, entryPointClasses, app.getDummyMainMethod(), Scene.v().getCallGraph(), PointsToCache.v());
+    }
+
+    public static SetupSnapshot save(File directory, List<String> entryPointClasses, SootMethod dummyMainMethod,
+                                     CallGraph callGraph, PointsToCache pointsToCache) throws IOException {
+        Map<String, int[]> localAllocSites = new LinkedHashMap<>();
+        Map<String, String> localTypes = new HashMap<>();
+        List<String[]> allocSites = new ArrayList<>();
+        Map<Integer, Integer> allocNodeToId = new HashMap<>();
+        for (SootClass sootClass : Scene.v().getApplicationClasses()) {
+            for (SootMethod sootMethod : sootClass.getMethods()) {
+                for (Map.Entry<Local, int[]> entry : pointsToCache.allocSites(sootMethod).entrySet()) {
+                    // Points-to sets that are not Spark's (e.g. with CHA) have no allocation sites to save
+                    if (entry.getValue() == null)
+                        continue;
+                    int[] ids = new int[entry.getValue().length];
+                    for (int i = 0; i < ids.length; i++) {
+                        int allocNode = entry.getValue()[i];
+                        Integer id = allocNodeToId.get(allocNode);
+                        if (id == null) {
+                            id = allocSites.size();
+                            allocNodeToId.put(allocNode, id);
+                            soot.jimple.spark.pag.AllocNode node = pointsToCache.getAllocNode(allocNode);
+                            allocSites.add(new String[]{node.getMethod() == null ? "" : node.getMethod().getSignature(),
+                                    String.valueOf(node.getNewExpr())});
+                        }
+                        ids[i] = id;
+                    }
+                    // The ids are assigned in the order the sites are first seen, PointsToCache.intersects needs them sorted
+                    Arrays.sort(ids);
+                    String local = sootMethod.getSignature() + "\t" + entry.getKey().getName();
+                    localAllocSites.put(local, ids);
+                    localTypes.put(local, entry.getKey().getType().toString());
+                }
+            }
+        }
+        // Written to a temporary directory first, so an interrupted run does not leave a partial snapshot behind
+        File tmpDirectory = new File(directory.getAbsolutePath() + ".tmp");
+        deleteRecursively(tmpDirectory);
+        tmpDirectory.mkdirs();
+        CallGraphWriter.write(callGraph, new File(tmpDirectory, CALLGRAPH_FILE));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(tmpDirectory, FACTS_FILE))))) {
+            out.writeInt(VERSION);
+            out.writeInt(entryPointClasses.size());
+            for (String entryPointClass : entryPointClasses)
+                out.writeUTF(entryPointClass);
+            out.writeUTF(dummyMainMethod.getSignature());
+            out.writeInt(allocSites.size());
+            for (String[] allocSite : allocSites) {
+                out.writeUTF(allocSite[0]);
+                out.writeUTF(allocSite[1]);
+            }
+            out.writeInt(localAllocSites.size());
+            for (Map.Entry<String, int[]> entry : localAllocSites.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(localTypes.get(entry.getKey()));
+                out.writeInt(entry.getValue().length);
+                for (int id : entry.getValue())
+                    out.writeInt(id);
+            }
+        }
+        // A snapshot of another version may be in the way
+        deleteRecursively(directory);
+        directory.getAbsoluteFile().getParentFile().mkdirs();
+        Files.move(tmpDirectory.toPath(), directory.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new SetupSnapshot(directory, entryPointClasses, dummyMainMethod.getSignature(), localAllocSites, localTypes, allocSites);
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        if (!file.exists())
+            return;
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            // The children come after their directory, so they are deleted first in reverse order
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    // Returns null if there's no usable snapshot in the directory
+    public static SetupSnapshot load(File directory) {
+        File factsFile = new File(directory, FACTS_FILE);
+        if (!factsFile.exists() || !new File(directory, CALLGRAPH_FILE).exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(factsFile)))) {
+            if (in.readInt() != VERSION) {
+                System.err.println("Ignoring the snapshot " + directory + " since it was written by another version.");
+                return null;
+            }
+            List<String> entryPointClasses = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--)
+                entryPointClasses.add(in.readUTF());
+            String dummyMainSignature = in.readUTF();
+            List<String[]> allocSites = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--)
+                allocSites.add(new String[]{in.readUTF(), in.readUTF()});
+            Map<String, int[]> localAllocSites = new LinkedHashMap<>();
+            Map<String, String> localTypes = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String local = in.readUTF();
+                localTypes.put(local, in.readUTF());
+                int[] ids = new int[in.readInt()];
+                for (int j = 0; j < ids.length; j++)
+                    ids[j] = in.readInt();
+                localAllocSites.put(local, ids);
+            }
+            SetupSnapshot snapshot = new SetupSnapshot(directory, entryPointClasses, dummyMainSignature, localAllocSites, localTypes, allocSites);
+            snapshot.getCallGraphFile();
+            snapshot.restored = true;
+            return snapshot;
+        } catch (IOException e) {
+            System.err.println("Ignoring the unreadable snapshot " + directory + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Whether the snapshot was loaded from disk, i.e. FlowDroid did not run
+    public boolean isRestored() {
+        return restored;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public List<String> getEntryPointClasses() {
+        return Collections.unmodifiableList(entryPointClasses);
+    }
+
+    public String getDummyMainSignature() {
+        return dummyMainSignature;
+    }
+
+    public synchronized CallGraphFile getCallGraphFile() throws IOException {
+        if (callGraphFile == null)
+            callGraphFile = CallGraphFile.open(new File(directory, CALLGRAPH_FILE));
+        return callGraphFile;
+    }
+
+    // The locals with saved allocation sites, as "<method signature>\t<local name>"
+    public Set<String> getLocals() {
+        return Collections.unmodifiableSet(localAllocSites.keySet());
+    }
+
+    // The sorted ids of the allocation sites of the local, or null if they were not saved
+    public int[] getAllocSites(String methodSignature, String localName) {
+        return localAllocSites.get(methodSignature + "\t" + localName);
+    }
+
+    public String getLocalType(String methodSignature, String localName) {
+        return localTypes.get(methodSignature + "\t" + localName);
+    }
+
+    public String getAllocSiteMethod(int allocSite) {
+        return allocSites.get(allocSite)[0];
+    }
+
+    public String getAllocSiteExpression(int allocSite) {
+        return allocSites.get(allocSite)[1];
+    }
+}
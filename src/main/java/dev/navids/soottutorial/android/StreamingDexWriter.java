@@ -0,0 +1,123 @@
+package dev.navids.soottutorial.android;
+
+import org.jf.dexlib2.iface.ClassDef;
+import soot.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// An output stage that transforms and writes the APK one class at a time, so the memory it needs doesn't grow with the
+// size of the app, unlike PackManager.runPacks() and writeOutput(), which keep the bodies of all classes until the end.
+// The dex files of the APK are rewritten one after the other with IncrementalApkWriter's assembler. The classes of a dex
+// file are transformed on a pool of threads; as soon as a class is done, it's converted to dex (if the transformer
+// changed it), its bodies are released and it's added to its dex file, which is written when all of its classes are in.
+// At most `window` classes are in flight between the pool and the dex file, so the transformation waits for the writing
+// when it gets ahead of it.
+// The body packs of runPacks() don't run: the transformer sees the bodies as Soot's "jb" pack builds them.
+public class StreamingDexWriter {
+    public static final int DEFAULT_WINDOW = 64;
+
+    private final BodyTransformer transformer;
+    private final int threads;
+    private final int window;
+    private final AtomicInteger changedClasses = new AtomicInteger();
+
+    public StreamingDexWriter(BodyTransformer transformer, int threads, int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("The window must be at least 1");
+        this.transformer = transformer;
+        this.threads = threads;
+        this.window = window;
+    }
+
+    // The window of the examples' "--streaming [--window <n>]" arguments, or 0 if there's no --streaming
+    static int getWindow(String[] args) {
+        if (!Arrays.asList(args).contains("--streaming"))
+            return 0;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--window")) {
+                // A window of 0 would turn the streaming off and a negative one would never stop the transformation
+                int window = Integer.parseInt(args[i + 1]);
+                if (window < 1)
+                    throw new IllegalArgumentException("The window must be at least 1, not " + window);
+                return window;
+            }
+        }
+        return DEFAULT_WINDOW;
+    }
+
+    public void write(File apk, File outputApk) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            int rewrittenDexFiles = IncrementalApkWriter.assemble(apk, outputApk, (dexFile, sink) -> {
+                CompletionService<ClassDef[]> completionService = new ExecutorCompletionService<>(executor);
+                boolean changed = false;
+                int inFlight = 0;
+                for (ClassDef classDef : dexFile.getClasses()) {
+                    if (inFlight == window) {
+                        changed |= emit(completionService, sink);
+                        inFlight--;
+                    }
+                    completionService.submit(() -> new ClassDef[]{classDef, transformClass(classDef)});
+                    inFlight++;
+                }
+                for (; inFlight > 0; inFlight--)
+                    changed |= emit(completionService, sink);
+                return changed;
+            }, IncrementalApkWriter::convertNewClasses);
+            System.out.println(String.format("Rewrote %d dex files with %d changed classes to %s", rewrittenDexFiles,
+                    changedClasses.get(), outputApk));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Adds the next class that is done to the dex file: its conversion if it changed, otherwise the original
+    private static boolean emit(CompletionService<ClassDef[]> completionService, Consumer<ClassDef> sink) throws IOException {
+        try {
+            ClassDef[] originalAndChanged = completionService.take().get();
+            sink.accept(originalAndChanged[1] != null ? originalAndChanged[1] : originalAndChanged[0]);
+            return originalAndChanged[1] != null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not transform a class", e.getCause());
+        }
+    }
+
+    // Transforms the bodies of the class, and returns its conversion to dex if the transformer changed any of them, or
+    // null otherwise. The bodies are released either way.
+    private ClassDef transformClass(ClassDef original) {
+        String className = original.getType().substring(1, original.getType().length() - 1).replace('/', '.');
+        SootClass sootClass = Scene.v().getSootClassUnsafe(className, false);
+        if (sootClass == null || sootClass.isPhantom() || !sootClass.isApplicationClass())
+            return null;
+        boolean changed = false;
+        for (SootMethod sootMethod : new ArrayList<>(sootClass.getMethods())) {
+            if (!sootMethod.isConcrete())
+                continue;
+            Body body = sootMethod.retrieveActiveBody();
+            long before = IncrementalApkWriter.fingerprint(body);
+            transformer.transform(body);
+            changed |= IncrementalApkWriter.fingerprint(body) != before;
+        }
+        ClassDef classDef = null;
+        if (changed) {
+            IncrementalApkWriter.ClassDefPrinter printer = new IncrementalApkWriter.ClassDefPrinter();
+            printer.add(sootClass);
+            classDef = printer.getClassDefs().get(original.getType());
+            changedClasses.incrementAndGet();
+        }
+        for (SootMethod sootMethod : sootClass.getMethods()) {
+            if (sootMethod.hasActiveBody())
+                sootMethod.releaseActiveBody();
+        }
+        return classDef;
+    }
+}
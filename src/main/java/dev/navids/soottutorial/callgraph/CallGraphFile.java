@@ -0,0 +1,182 @@
+package dev.navids.soottutorial.callgraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// A call graph written by CallGraphWriter, memory-mapped for queries. Opening it only reads the trailer; a method's
+// edges are decoded from its record when they are asked for, and a signature is looked up by a binary search of the
+// sorted ids, comparing the bytes in the mapped file. It doesn't depend on Soot, so it can be used without loading any classes or Android platforms.
+// Reads use absolute positions, so one instance can be shared by several threads. Files larger than 2GB are not
+// supported.
+public class CallGraphFile {
+
+    public interface EdgeVisitor {
+        // unitOffset is the call site's index in the caller's body, or -1 if it's unknown
+        void visit(int target, int unitOffset, String kind);
+    }
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int methodCount;
+    private final int edgeCount;
+    private final int methodTableOffset;
+    private final int signatureOffsetsOffset;
+    private final int recordOffsetsOffset;
+    private final int sortedIdsOffset;
+    private final int kindTableOffset;
+    private volatile String[] kinds = null;
+
+    private CallGraphFile(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        int trailer = buffer.limit() - CallGraphWriter.TRAILER_SIZE;
+        if (trailer < 8 || buffer.getInt(0) != CallGraphWriter.MAGIC || buffer.getInt(trailer + 32) != CallGraphWriter.MAGIC)
+            throw new IOException(file + " is not a call graph file");
+        if (buffer.getInt(4) != CallGraphWriter.VERSION || buffer.getInt(trailer + 28) != CallGraphWriter.VERSION)
+            throw new IOException(file + " was written by another version of CallGraphWriter");
+        methodCount = buffer.getInt(trailer);
+        edgeCount = buffer.getInt(trailer + 4);
+        methodTableOffset = buffer.getInt(trailer + 8);
+        signatureOffsetsOffset = buffer.getInt(trailer + 12);
+        recordOffsetsOffset = buffer.getInt(trailer + 16);
+        sortedIdsOffset = buffer.getInt(trailer + 20);
+        kindTableOffset = buffer.getInt(trailer + 24);
+    }
+
+    public static CallGraphFile open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is larger than 2GB");
+            // The mapping stays valid after the channel is closed
+            return new CallGraphFile(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int methodCount() {
+        return methodCount;
+    }
+
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    public String getSignature(int method) {
+        int start = buffer.getInt(signatureOffsetsOffset + method * 4);
+        int end = buffer.getInt(signatureOffsetsOffset + (method + 1) * 4);
+        byte[] signature = new byte[end - start];
+        for (int i = 0; i < signature.length; i++)
+            signature[i] = buffer.get(methodTableOffset + start + i);
+        return new String(signature, StandardCharsets.UTF_8);
+    }
+
+    // Returns -1 if no edge goes from or to a method with the signature
+    public int idOf(String signature) {
+        byte[] key = signature.getBytes(StandardCharsets.UTF_8);
+        int low = 0, high = methodCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int method = buffer.getInt(sortedIdsOffset + middle * 4);
+            int comparison = compareSignature(method, key);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return method;
+        }
+        return -1;
+    }
+
+    // Compares the method's signature with the key in the order of CallGraphWriter.compareSignatures
+    private int compareSignature(int method, byte[] key) {
+        int start = methodTableOffset + buffer.getInt(signatureOffsetsOffset + method * 4);
+        int length = methodTableOffset + buffer.getInt(signatureOffsetsOffset + (method + 1) * 4) - start;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            byte b = buffer.get(start + i);
+            if (b != key[i])
+                return (b & 0xFF) - (key[i] & 0xFF);
+        }
+        return length - key.length;
+    }
+
+    public int outDegree(int method) {
+        int record = buffer.getInt(recordOffsetsOffset + method * 4);
+        if (record < 0)
+            return 0;
+        int[] position = {record};
+        readVarInt(position);
+        return readVarInt(position);
+    }
+
+    public int[] getCallees(int method) {
+        int record = buffer.getInt(recordOffsetsOffset + method * 4);
+        if (record < 0)
+            return new int[0];
+        int[] position = {record};
+        readVarInt(position);
+        int[] callees = new int[readVarInt(position)];
+        int target = 0;
+        for (int i = 0; i < callees.length; i++) {
+            target += unzigzag(readVarInt(position));
+            callees[i] = target;
+            readVarInt(position);
+            position[0]++;
+        }
+        return callees;
+    }
+
+    public void forEachEdge(int method, EdgeVisitor visitor) {
+        int record = buffer.getInt(recordOffsetsOffset + method * 4);
+        if (record < 0)
+            return;
+        String[] kindNames = getKinds();
+        int[] position = {record};
+        readVarInt(position);
+        int count = readVarInt(position);
+        int target = 0, unitOffset = 0;
+        for (int i = 0; i < count; i++) {
+            target += unzigzag(readVarInt(position));
+            unitOffset += unzigzag(readVarInt(position));
+            visitor.visit(target, unitOffset - 1, kindNames[buffer.get(position[0]++) & 0xFF]);
+        }
+    }
+
+    private String[] getKinds() {
+        String[] current = kinds;
+        if (current == null) {
+            int[] position = {kindTableOffset};
+            current = new String[readVarInt(position)];
+            for (int i = 0; i < current.length; i++) {
+                byte[] name = new byte[readVarInt(position)];
+                for (int j = 0; j < name.length; j++)
+                    name[j] = buffer.get(position[0]++);
+                current[i] = new String(name, StandardCharsets.UTF_8);
+            }
+            kinds = current;
+        }
+        return current;
+    }
+
+    private int readVarInt(int[] position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(position[0]++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,310 @@
+package dev.navids.soottutorial.callgraph;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import soot.MethodOrMethodContext;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.util.*;
+
+// A compact, read-only copy of a call graph for reachability queries. Methods get dense ids (0, 1, 2, ...) and the
+// edges are stored in CSR form: the callees of method i are targets[offsets[i]] ... targets[offsets[i + 1] - 1], in
+// the same order as CallGraph.edgesOutOf, so a BFS over the index visits methods in the same order as one over the
+// CallGraph does. Only the int arrays and one SootMethod per node are kept, no Edge objects or hash maps of methods.
+public class CallGraphIndex {
+    public static final int UNVISITED = -2;
+    public static final int NO_PARENT = -1;
+
+    private final TObjectIntHashMap<SootMethod> methodToId;
+    private final SootMethod[] methods;
+    private final int[] offsets;
+    private final int[] targets;
+    // The reverse edges in the same CSR form, built on the first backward query
+    private int[] reverseOffsets;
+    private int[] sources;
+
+    public CallGraphIndex(CallGraph callGraph) {
+        methodToId = new TObjectIntHashMap<>(1024, 0.5f, -1);
+        List<SootMethod> methodList = new ArrayList<>();
+        // Edges are first collected per source method in the order sourceMethods() returns them and then laid out by id
+        TIntArrayList sources = new TIntArrayList();
+        TIntArrayList sourceStarts = new TIntArrayList();
+        TIntArrayList collectedTargets = new TIntArrayList();
+        for (Iterator<MethodOrMethodContext> it = callGraph.sourceMethods(); it.hasNext(); ) {
+            SootMethod sourceMethod = it.next().method();
+            sources.add(idOf(sourceMethod, methodList));
+            sourceStarts.add(collectedTargets.size());
+            for (Iterator<Edge> edges = callGraph.edgesOutOf(sourceMethod); edges.hasNext(); )
+                collectedTargets.add(idOf(edges.next().tgt(), methodList));
+        }
+        sourceStarts.add(collectedTargets.size());
+        methods = methodList.toArray(new SootMethod[0]);
+        offsets = new int[methods.length + 1];
+        for (int i = 0; i < sources.size(); i++)
+            offsets[sources.get(i) + 1] += sourceStarts.get(i + 1) - sourceStarts.get(i);
+        for (int i = 0; i < methods.length; i++)
+            offsets[i + 1] += offsets[i];
+        targets = new int[collectedTargets.size()];
+        for (int i = 0; i < sources.size(); i++) {
+            int start = sourceStarts.get(i);
+            collectedTargets.toArray(targets, start, offsets[sources.get(i)], sourceStarts.get(i + 1) - start);
+        }
+    }
+
+    private CallGraphIndex(SootMethod[] methods, int[] offsets, int[] targets) {
+        methodToId = new TObjectIntHashMap<>(Math.max(16, methods.length * 2), 0.5f, -1);
+        for (int id = 0; id < methods.length; id++)
+            methodToId.put(methods[id], id);
+        this.methods = methods;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    private int idOf(SootMethod method, List<SootMethod> methodList) {
+        int id = methodToId.get(method);
+        if (id < 0) {
+            id = methodList.size();
+            methodToId.put(method, id);
+            methodList.add(method);
+        }
+        return id;
+    }
+
+    public int size() {
+        return methods.length;
+    }
+
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    // Returns -1 if the method has no incoming or outgoing edges
+    public int idOf(SootMethod method) {
+        return methodToId.get(method);
+    }
+
+    public SootMethod methodOf(int id) {
+        return methods[id];
+    }
+
+    public int outDegree(int id) {
+        return offsets[id + 1] - offsets[id];
+    }
+
+    public int callee(int id, int i) {
+        return targets[offsets[id] + i];
+    }
+
+    public int inDegree(int id) {
+        buildReverseEdges();
+        return reverseOffsets[id + 1] - reverseOffsets[id];
+    }
+
+    public int caller(int id, int i) {
+        buildReverseEdges();
+        return sources[reverseOffsets[id] + i];
+    }
+
+    private synchronized void buildReverseEdges() {
+        if (reverseOffsets != null)
+            return;
+        int[] newReverseOffsets = new int[methods.length + 1];
+        for (int target : targets)
+            newReverseOffsets[target + 1]++;
+        for (int i = 0; i < methods.length; i++)
+            newReverseOffsets[i + 1] += newReverseOffsets[i];
+        int[] newSources = new int[targets.length];
+        int[] next = Arrays.copyOf(newReverseOffsets, methods.length);
+        for (int method = 0; method < methods.length; method++) {
+            for (int i = offsets[method]; i < offsets[method + 1]; i++)
+                newSources[next[targets[i]]++] = method;
+        }
+        sources = newSources;
+        reverseOffsets = newReverseOffsets;
+    }
+
+    // A BFS from source; the result maps each method id to the id it was first reached from, NO_PARENT for the source
+    // and UNVISITED for the methods that are not reachable
+    public int[] bfs(int source) {
+        int[] parents = new int[methods.length];
+        Arrays.fill(parents, UNVISITED);
+        int[] queue = new int[methods.length];
+        int head = 0, tail = 0;
+        parents[source] = NO_PARENT;
+        queue[tail++] = source;
+        while (head < tail) {
+            int method = queue[head++];
+            for (int i = offsets[method]; i < offsets[method + 1]; i++) {
+                int callee = targets[i];
+                if (parents[callee] != UNVISITED)
+                    continue;
+                parents[callee] = method;
+                queue[tail++] = callee;
+            }
+        }
+        return parents;
+    }
+
+    // A backward BFS over the callers of the targets that stops at the first entry point it finds. The result is a
+    // shortest path from that entry point to one of the targets, or an empty list if no entry point reaches them.
+    public List<SootMethod> findPathFromEntryPoints(Collection<SootMethod> targetMethods, Collection<SootMethod> entryPoints) {
+        buildReverseEdges();
+        boolean[] isEntryPoint = new boolean[methods.length];
+        for (SootMethod entryPoint : entryPoints) {
+            int id = idOf(entryPoint);
+            if (id >= 0)
+                isEntryPoint[id] = true;
+        }
+        // towardTarget[m] is the method m was reached from, i.e. the next method on m's path to a target
+        int[] towardTarget = new int[methods.length];
+        Arrays.fill(towardTarget, UNVISITED);
+        int[] queue = new int[methods.length];
+        int head = 0, tail = 0;
+        for (SootMethod target : targetMethods) {
+            int id = idOf(target);
+            if (id < 0) {
+                if (entryPoints.contains(target))
+                    return Collections.singletonList(target);
+                continue;
+            }
+            if (towardTarget[id] != UNVISITED)
+                continue;
+            towardTarget[id] = NO_PARENT;
+            queue[tail++] = id;
+        }
+        while (head < tail) {
+            int method = queue[head++];
+            if (isEntryPoint[method]) {
+                List<SootMethod> path = new ArrayList<>();
+                for (int it = method; it != NO_PARENT; it = towardTarget[it])
+                    path.add(methods[it]);
+                return path;
+            }
+            for (int i = reverseOffsets[method]; i < reverseOffsets[method + 1]; i++) {
+                int caller = sources[i];
+                if (towardTarget[caller] != UNVISITED)
+                    continue;
+                towardTarget[caller] = method;
+                queue[tail++] = caller;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    // The subgraph of the methods that can reach one of the targets and the edges between them, as a new index
+    public CallGraphIndex backwardSlice(Collection<SootMethod> targetMethods) {
+        buildReverseEdges();
+        boolean[] inSlice = new boolean[methods.length];
+        int[] queue = new int[methods.length];
+        int head = 0, tail = 0;
+        for (SootMethod target : targetMethods) {
+            int id = idOf(target);
+            if (id < 0 || inSlice[id])
+                continue;
+            inSlice[id] = true;
+            queue[tail++] = id;
+        }
+        while (head < tail) {
+            int method = queue[head++];
+            for (int i = reverseOffsets[method]; i < reverseOffsets[method + 1]; i++) {
+                if (!inSlice[sources[i]]) {
+                    inSlice[sources[i]] = true;
+                    queue[tail++] = sources[i];
+                }
+            }
+        }
+        // Keep the original relative order of the methods and of each method's callees
+        int[] sliceIds = new int[methods.length];
+        SootMethod[] sliceMethods = new SootMethod[tail];
+        int sliceSize = 0;
+        for (int method = 0; method < methods.length; method++) {
+            if (inSlice[method]) {
+                sliceIds[method] = sliceSize;
+                sliceMethods[sliceSize++] = methods[method];
+            }
+        }
+        int[] sliceOffsets = new int[sliceSize + 1];
+        TIntArrayList sliceTargets = new TIntArrayList();
+        for (int method = 0; method < methods.length; method++) {
+            if (!inSlice[method])
+                continue;
+            for (int i = offsets[method]; i < offsets[method + 1]; i++) {
+                if (inSlice[targets[i]])
+                    sliceTargets.add(sliceIds[targets[i]]);
+            }
+            sliceOffsets[sliceIds[method] + 1] = sliceTargets.size();
+        }
+        return new CallGraphIndex(sliceMethods, sliceOffsets, sliceTargets.toArray());
+    }
+
+    public Reachability reachableFrom(SootMethod initialMethod) {
+        int source = idOf(initialMethod);
+        return new Reachability(initialMethod, source < 0 ? null : bfs(source));
+    }
+
+    public MultiReachability reachability(List<SootMethod> entries, Collection<SootMethod> targets) {
+        return new MultiReachability(this, entries, targets);
+    }
+
+    // The result of a BFS from one method, answering reachability and path queries without a map per reachable method
+    public class Reachability {
+        private final SootMethod initialMethod;
+        private final int[] parents;
+
+        Reachability(SootMethod initialMethod, int[] parents) {
+            this.initialMethod = initialMethod;
+            this.parents = parents;
+        }
+
+        public boolean isReachable(SootMethod method) {
+            if (method.equals(initialMethod))
+                return true;
+            int id = idOf(method);
+            return parents != null && id >= 0 && parents[id] != UNVISITED;
+        }
+
+        // Returns null if the method is not reachable or is the initial method
+        public SootMethod getParent(SootMethod method) {
+            int id = idOf(method);
+            if (parents == null || id < 0 || parents[id] < 0)
+                return null;
+            return methods[parents[id]];
+        }
+
+        // The methods on the BFS path from the initial method to the given one, or an empty list if it's not reachable
+        public List<SootMethod> getPath(SootMethod method) {
+            if (!isReachable(method))
+                return Collections.emptyList();
+            LinkedList<SootMethod> path = new LinkedList<>();
+            for (SootMethod it = method; it != null; it = getParent(it))
+                path.addFirst(it);
+            return path;
+        }
+
+        public int reachableCount() {
+            if (parents == null)
+                return 1;
+            int count = 0;
+            for (int parent : parents) {
+                if (parent != UNVISITED)
+                    count++;
+            }
+            return count;
+        }
+
+        // The same map as a BFS over the CallGraph builds: reachable methods to their parents (null for the initial method)
+        public Map<SootMethod, SootMethod> toParentMap() {
+            Map<SootMethod, SootMethod> parentMap = new HashMap<>();
+            parentMap.put(initialMethod, null);
+            if (parents == null)
+                return parentMap;
+            for (int id = 0; id < parents.length; id++) {
+                if (parents[id] >= 0)
+                    parentMap.put(methods[id], methods[parents[id]]);
+            }
+            return parentMap;
+        }
+    }
+}
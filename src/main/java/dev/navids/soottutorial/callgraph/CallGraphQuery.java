@@ -0,0 +1,220 @@
+package dev.navids.soottutorial.callgraph;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+// Offline reachability, fan-in/fan-out and shortest path queries over a call graph saved by CallGraphWriter (e.g.
+// with "AndroidCallGraph SPARK --export cg.bin"). It only memory-maps the file, so it starts without Soot, FlowDroid
+// or the Android platforms. The callers of the methods are computed on the first query that needs them.
+public class CallGraphQuery {
+    private final CallGraphFile callGraphFile;
+    // The reverse edges in CSR form: the callers of method i are callers[callerOffsets[i]] ... callers[callerOffsets[i + 1] - 1]
+    private int[] callerOffsets = null;
+    private int[] callers = null;
+
+    public CallGraphQuery(CallGraphFile callGraphFile) {
+        this.callGraphFile = callGraphFile;
+    }
+
+    public CallGraphFile getCallGraphFile() {
+        return callGraphFile;
+    }
+
+    // A BFS from source that stops at target; the result is a shortest path from source to target, or an empty array
+    // if target is not reachable
+    public int[] shortestPath(int source, int target) {
+        int[] parents = new int[callGraphFile.methodCount()];
+        Arrays.fill(parents, CallGraphIndex.UNVISITED);
+        int[] queue = new int[callGraphFile.methodCount()];
+        int head = 0, tail = 0;
+        parents[source] = CallGraphIndex.NO_PARENT;
+        queue[tail++] = source;
+        while (head < tail) {
+            int method = queue[head++];
+            if (method == target) {
+                int length = 0;
+                for (int it = target; it != CallGraphIndex.NO_PARENT; it = parents[it])
+                    length++;
+                int[] path = new int[length];
+                for (int it = target; it != CallGraphIndex.NO_PARENT; it = parents[it])
+                    path[--length] = it;
+                return path;
+            }
+            for (int callee : callGraphFile.getCallees(method)) {
+                if (parents[callee] == CallGraphIndex.UNVISITED) {
+                    parents[callee] = method;
+                    queue[tail++] = callee;
+                }
+            }
+        }
+        return new int[0];
+    }
+
+    public boolean isReachable(int source, int target) {
+        return shortestPath(source, target).length > 0;
+    }
+
+    // The number of methods reachable from source, including itself
+    public int reachableCount(int source) {
+        boolean[] visited = new boolean[callGraphFile.methodCount()];
+        int[] queue = new int[callGraphFile.methodCount()];
+        int head = 0, tail = 0;
+        visited[source] = true;
+        queue[tail++] = source;
+        while (head < tail) {
+            for (int callee : callGraphFile.getCallees(queue[head++])) {
+                if (!visited[callee]) {
+                    visited[callee] = true;
+                    queue[tail++] = callee;
+                }
+            }
+        }
+        return tail;
+    }
+
+    // The distinct methods the method calls, in the order of their first edge
+    public int[] getCallees(int method) {
+        return distinct(callGraphFile.getCallees(method));
+    }
+
+    // The distinct methods that call the method, in increasing id order
+    public int[] getCallers(int method) {
+        buildCallers();
+        return distinct(Arrays.copyOfRange(callers, callerOffsets[method], callerOffsets[method + 1]));
+    }
+
+    public int fanOut(int method) {
+        return getCallees(method).length;
+    }
+
+    public int fanIn(int method) {
+        return getCallers(method).length;
+    }
+
+    private static int[] distinct(int[] methods) {
+        TIntHashSet seen = new TIntHashSet(methods.length);
+        int[] distinctMethods = new int[methods.length];
+        int count = 0;
+        for (int method : methods) {
+            if (seen.add(method))
+                distinctMethods[count++] = method;
+        }
+        return Arrays.copyOf(distinctMethods, count);
+    }
+
+    private synchronized void buildCallers() {
+        if (callers != null)
+            return;
+        int methodCount = callGraphFile.methodCount();
+        int[] offsets = new int[methodCount + 1];
+        for (int method = 0; method < methodCount; method++) {
+            for (int callee : callGraphFile.getCallees(method))
+                offsets[callee + 1]++;
+        }
+        for (int i = 0; i < methodCount; i++)
+            offsets[i + 1] += offsets[i];
+        int[] reverseEdges = new int[offsets[methodCount]];
+        int[] next = Arrays.copyOf(offsets, methodCount);
+        for (int method = 0; method < methodCount; method++) {
+            for (int callee : callGraphFile.getCallees(method))
+                reverseEdges[next[callee]++] = method;
+        }
+        callerOffsets = offsets;
+        callers = reverseEdges;
+    }
+
+    // "<dev.navids.multicomp1.ClassChild: void childMethod()>" -> "ClassChild.childMethod", as in AndroidCallgraph.getPossiblePath
+    public static String getShortName(String signature) {
+        int colon = signature.indexOf(':');
+        int parenthesis = signature.indexOf('(', colon);
+        if (colon < 0 || parenthesis < 0)
+            return signature;
+        String className = signature.substring(1, colon);
+        String methodName = signature.substring(signature.lastIndexOf(' ', parenthesis) + 1, parenthesis);
+        return className.substring(className.lastIndexOf('.') + 1) + "." + methodName;
+    }
+
+    public String getPossiblePath(int[] path) {
+        StringJoiner possiblePath = new StringJoiner(" -> ");
+        for (int method : path)
+            possiblePath.add(getShortName(callGraphFile.getSignature(method)));
+        return possiblePath.toString();
+    }
+
+    private int getMethod(String signature) {
+        int method = callGraphFile.idOf(signature);
+        if (method < 0)
+            throw new IllegalArgumentException("The method " + signature + " is not in the callgraph");
+        return method;
+    }
+
+    // Answers one query; the methods are given by their signatures
+    public String answer(String[] query) {
+        if (query.length == 3 && (query[0].equals("reachable") || query[0].equals("path"))) {
+            int[] path = shortestPath(getMethod(query[1]), getMethod(query[2]));
+            if (path.length == 0)
+                return "not reachable";
+            return query[0].equals("reachable") ? "reachable" : getPossiblePath(path);
+        }
+        if (query.length == 2 && query[0].equals("reachableCount"))
+            return String.valueOf(reachableCount(getMethod(query[1])));
+        if (query.length == 2 && (query[0].equals("callees") || query[0].equals("callers"))) {
+            int method = getMethod(query[1]);
+            StringJoiner methods = new StringJoiner("\n");
+            for (int other : query[0].equals("callees") ? getCallees(method) : getCallers(method))
+                methods.add(callGraphFile.getSignature(other));
+            return methods.toString();
+        }
+        if (query.length == 2 && query[0].equals("fanIn"))
+            return String.valueOf(fanIn(getMethod(query[1])));
+        if (query.length == 2 && query[0].equals("fanOut"))
+            return String.valueOf(fanOut(getMethod(query[1])));
+        throw new IllegalArgumentException("Unknown query: " + String.join(" ", query));
+    }
+
+    private static final String usage = "Queries: reachable|path <source_signature> <target_signature>, " +
+            "reachableCount|callees|callers|fanIn|fanOut <method_signature>";
+
+    // CallGraphQuery <callgraph_file> [<query> <signatures>...]; without a query, queries are read from the standard
+    // input, one per line, with the signatures separated by tabs
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: CallGraphQuery <callgraph_file> [<query>]\n" + usage);
+            return;
+        }
+        CallGraphQuery callGraphQuery;
+        try {
+            callGraphQuery = new CallGraphQuery(CallGraphFile.open(new File(args[0])));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (args.length > 1) {
+            answerAndPrint(callGraphQuery, Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!line.trim().isEmpty())
+                    answerAndPrint(callGraphQuery, line.trim().split("\t"));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void answerAndPrint(CallGraphQuery callGraphQuery, String[] query) {
+        try {
+            System.out.println(callGraphQuery.answer(query));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package dev.navids.soottutorial.callgraph;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import soot.MethodOrMethodContext;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Streams a CallGraph to a file in the format CallGraphFile reads. Each source method's edges are encoded and written
+// as soon as they are visited, so only the method and kind tables are kept in memory; they are written at the end.
+//
+// Layout (all ints big-endian; "varint" is an unsigned LEB128 int, "zigzag" a zigzag-encoded varint):
+//   header:  int MAGIC, int VERSION
+//   records: one per source method: varint source id, varint edge count, and per edge, in edgesOutOf order:
+//            zigzag (target id - previous target id), zigzag (call site unit offset + 1 - previous one), byte kind id;
+//            the unit offset is the call site's index in the source's body, or -1 if it's unknown
+//   method table:    the UTF-8 signatures of the methods one after another, then int[methodCount + 1] start offsets
+//                    relative to the first signature
+//   record offsets:  int[methodCount], the file offset of each method's record or -1 if it has no outgoing edges
+//   sorted ids:      int[methodCount], the method ids in the order of their UTF-8 signatures (compared as unsigned bytes),
+//                    so a signature is looked up by binary search
+//   kind table:      varint count, and per kind a varint length and the UTF-8 name
+//   trailer:         int methodCount, int edgeCount, int methodTableOffset, int signatureOffsetsOffset,
+//                    int recordOffsetsOffset, int sortedIdsOffset, int kindTableOffset, int VERSION, int MAGIC
+public class CallGraphWriter {
+    public static final int MAGIC = 0x53434731; // "SCG1"
+    public static final int VERSION = 2;
+    public static final int TRAILER_SIZE = 9 * 4;
+
+    private final DataOutputStream out;
+    private final TObjectIntHashMap<SootMethod> methodToId = new TObjectIntHashMap<>(1024, 0.5f, -1);
+    private final List<SootMethod> methods = new ArrayList<>();
+    private final TIntArrayList recordOffsets = new TIntArrayList();
+    private final Map<String, Integer> kindToId = new HashMap<>();
+    private final List<String> kinds = new ArrayList<>();
+    private int edgeCount = 0;
+
+    private CallGraphWriter(OutputStream outputStream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    public static void write(CallGraph callGraph, File file) throws IOException {
+        // Write to a temporary file first so a failed write cannot leave a truncated call graph behind
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        boolean written = false;
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tmpFile)) {
+                CallGraphWriter writer = new CallGraphWriter(outputStream);
+                for (Iterator<MethodOrMethodContext> it = callGraph.sourceMethods(); it.hasNext(); )
+                    writer.writeRecord(callGraph, it.next().method());
+                writer.finish();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            written = true;
+        } finally {
+            if (!written)
+                tmpFile.delete();
+        }
+    }
+
+    private int idOf(SootMethod method) {
+        int id = methodToId.get(method);
+        if (id < 0) {
+            id = methods.size();
+            methodToId.put(method, id);
+            methods.add(method);
+            recordOffsets.add(-1);
+        }
+        return id;
+    }
+
+    private int kindIdOf(String kind) {
+        Integer id = kindToId.get(kind);
+        if (id == null) {
+            id = kinds.size();
+            kindToId.put(kind, id);
+            kinds.add(kind);
+        }
+        return id;
+    }
+
+    private void writeRecord(CallGraph callGraph, SootMethod source) throws IOException {
+        List<Edge> edges = new ArrayList<>();
+        for (Iterator<Edge> it = callGraph.edgesOutOf(source); it.hasNext(); )
+            edges.add(it.next());
+        if (edges.isEmpty())
+            return;
+        int sourceId = idOf(source);
+        recordOffsets.set(sourceId, out.size());
+        writeVarInt(sourceId);
+        writeVarInt(edges.size());
+        Map<Unit, Integer> unitOffsets = getUnitOffsets(source);
+        int previousTarget = 0, previousUnitOffset = 0;
+        for (Edge edge : edges) {
+            int target = idOf(edge.tgt());
+            Integer unitOffset = edge.srcUnit() == null ? null : unitOffsets.get(edge.srcUnit());
+            int encodedUnitOffset = unitOffset == null ? 0 : unitOffset + 1;
+            writeVarInt(zigzag(target - previousTarget));
+            writeVarInt(zigzag(encodedUnitOffset - previousUnitOffset));
+            out.writeByte(kindIdOf(edge.kind().name()));
+            previousTarget = target;
+            previousUnitOffset = encodedUnitOffset;
+        }
+        edgeCount += edges.size();
+    }
+
+    private static Map<Unit, Integer> getUnitOffsets(SootMethod method) {
+        Map<Unit, Integer> unitOffsets = new HashMap<>();
+        if (!method.hasActiveBody())
+            return unitOffsets;
+        int offset = 0;
+        for (Unit unit : method.getActiveBody().getUnits())
+            unitOffsets.put(unit, offset++);
+        return unitOffsets;
+    }
+
+    private void finish() throws IOException {
+        int methodTableOffset = out.size();
+        int[] signatureOffsets = new int[methods.size() + 1];
+        byte[][] signatures = new byte[methods.size()][];
+        for (int id = 0; id < methods.size(); id++) {
+            signatures[id] = methods.get(id).getSignature().getBytes(StandardCharsets.UTF_8);
+            out.write(signatures[id]);
+            signatureOffsets[id + 1] = signatureOffsets[id] + signatures[id].length;
+        }
+        int signatureOffsetsOffset = out.size();
+        for (int signatureOffset : signatureOffsets)
+            out.writeInt(signatureOffset);
+        int recordOffsetsOffset = out.size();
+        for (int id = 0; id < methods.size(); id++)
+            out.writeInt(recordOffsets.get(id));
+        Integer[] sortedIds = new Integer[methods.size()];
+        for (int id = 0; id < sortedIds.length; id++)
+            sortedIds[id] = id;
+        Arrays.sort(sortedIds, (left, right) -> compareSignatures(signatures[left], signatures[right]));
+        int sortedIdsOffset = out.size();
+        for (int id : sortedIds)
+            out.writeInt(id);
+        int kindTableOffset = out.size();
+        writeVarInt(kinds.size());
+        for (String kind : kinds) {
+            byte[] name = kind.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(name.length);
+            out.write(name);
+        }
+        out.writeInt(methods.size());
+        out.writeInt(edgeCount);
+        out.writeInt(methodTableOffset);
+        out.writeInt(signatureOffsetsOffset);
+        out.writeInt(recordOffsetsOffset);
+        out.writeInt(sortedIdsOffset);
+        out.writeInt(kindTableOffset);
+        out.writeInt(VERSION);
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    // The order of the sorted ids: unsigned bytes, then length
+    static int compareSignatures(byte[] left, byte[] right) {
+        for (int i = 0; i < Math.min(left.length, right.length); i++) {
+            if (left[i] != right[i])
+                return (left[i] & 0xFF) - (right[i] & 0xFF);
+        }
+        return left.length - right.length;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
@@ -0,0 +1,146 @@
+package dev.navids.soottutorial.callgraph;
+
+import soot.SootMethod;
+
+import java.util.*;
+
+// Answers "which entry points reach which target methods" for many entry points in one level-synchronous traversal
+// of a CallGraphIndex. Every method carries a bit set of the entry points that reached it (one bit per entry point,
+// packed in longs), and each level pushes only the bits that are new at that level to the callees. A bit is set at the
+// same level a BFS from that entry point would reach the method. Only the bit sets are kept, so the memory grows with
+// methods x entry points / 64; a witness path is built on demand by one BFS from its entry point.
+// The traversal stops once every target is reached by every entry point, so the answers are only complete for the
+// given targets; with no targets it runs to the end and any method can be queried.
+public class MultiReachability {
+    private final CallGraphIndex index;
+    private final List<SootMethod> entries;
+    private final int[] entryIds;
+    private final int words;
+    // reached[method * words + w] holds the bits of entry points w * 64 ... w * 64 + 63 that reach the method
+    private final long[] reached;
+
+    public MultiReachability(CallGraphIndex index, List<SootMethod> entries, Collection<SootMethod> targets) {
+        this.index = index;
+        this.entries = new ArrayList<>(entries);
+        this.entryIds = new int[entries.size()];
+        this.words = Math.max(1, (entries.size() + 63) / 64);
+        int n = index.size();
+        reached = new long[n * words];
+        long[] frontier = new long[n * words];
+        long[] next = new long[n * words];
+        int[] frontierMethods = new int[n];
+        int[] nextMethods = new int[n];
+        int frontierSize = 0;
+        int validEntries = 0;
+        for (int entry = 0; entry < entryIds.length; entry++) {
+            int id = index.idOf(entries.get(entry));
+            entryIds[entry] = id;
+            if (id < 0)
+                continue;
+            validEntries++;
+            if (!hasAnyBit(frontier, id))
+                frontierMethods[frontierSize++] = id;
+            reached[id * words + (entry >>> 6)] |= 1L << (entry & 63);
+            frontier[id * words + (entry >>> 6)] |= 1L << (entry & 63);
+        }
+        boolean[] isTarget = new boolean[n];
+        long remainingPairs = targets.isEmpty() ? Long.MAX_VALUE : 0;
+        for (SootMethod target : targets) {
+            int id = index.idOf(target);
+            if (id < 0 || isTarget[id])
+                continue;
+            isTarget[id] = true;
+            remainingPairs += validEntries - bitCount(reached, id);
+        }
+
+        while (frontierSize > 0 && remainingPairs > 0) {
+            int nextSize = 0;
+            for (int f = 0; f < frontierSize; f++) {
+                int method = frontierMethods[f];
+                for (int i = 0, degree = index.outDegree(method); i < degree; i++) {
+                    int callee = index.callee(method, i);
+                    boolean wasInNext = hasAnyBit(next, callee);
+                    boolean changed = false;
+                    for (int w = 0; w < words; w++) {
+                        long newBits = frontier[method * words + w] & ~reached[callee * words + w];
+                        if (newBits == 0)
+                            continue;
+                        changed = true;
+                        reached[callee * words + w] |= newBits;
+                        next[callee * words + w] |= newBits;
+                        if (isTarget[callee])
+                            remainingPairs -= Long.bitCount(newBits);
+                    }
+                    if (changed && !wasInNext)
+                        nextMethods[nextSize++] = callee;
+                }
+            }
+            // The next level becomes the frontier, and the old frontier is cleared to be reused for the level after it
+            for (int f = 0; f < frontierSize; f++)
+                Arrays.fill(frontier, frontierMethods[f] * words, (frontierMethods[f] + 1) * words, 0L);
+            long[] swapBits = frontier;
+            frontier = next;
+            next = swapBits;
+            int[] swapMethods = frontierMethods;
+            frontierMethods = nextMethods;
+            nextMethods = swapMethods;
+            frontierSize = nextSize;
+        }
+    }
+
+    private boolean hasAnyBit(long[] bits, int method) {
+        for (int w = 0; w < words; w++) {
+            if (bits[method * words + w] != 0)
+                return true;
+        }
+        return false;
+    }
+
+    private int bitCount(long[] bits, int method) {
+        int count = 0;
+        for (int w = 0; w < words; w++)
+            count += Long.bitCount(bits[method * words + w]);
+        return count;
+    }
+
+    private int entryIndex(SootMethod entry) {
+        int entryIndex = entries.indexOf(entry);
+        if (entryIndex < 0)
+            throw new IllegalArgumentException(entry + " is not an entry point of this query");
+        return entryIndex;
+    }
+
+    public List<SootMethod> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public boolean reaches(SootMethod entry, SootMethod target) {
+        int entryIndex = entryIndex(entry);
+        if (entry.equals(target))
+            return true;
+        int id = index.idOf(target);
+        return id >= 0 && (reached[id * words + (entryIndex >>> 6)] & (1L << (entryIndex & 63))) != 0;
+    }
+
+    public List<SootMethod> getReachingEntries(SootMethod target) {
+        List<SootMethod> reachingEntries = new ArrayList<>();
+        for (SootMethod entry : entries) {
+            if (reaches(entry, target))
+                reachingEntries.add(entry);
+        }
+        return reachingEntries;
+    }
+
+    // A shortest path from the entry point to the target, or an empty list if the target is not reachable from it
+    public List<SootMethod> getWitnessPath(SootMethod entry, SootMethod target) {
+        if (!reaches(entry, target))
+            return Collections.emptyList();
+        if (entry.equals(target))
+            return Collections.singletonList(target);
+        int[] parents = index.bfs(entryIds[entryIndex(entry)]);
+        LinkedList<SootMethod> path = new LinkedList<>();
+        for (int method = index.idOf(target); method != CallGraphIndex.NO_PARENT; method = parents[method])
+            path.addFirst(index.methodOf(method));
+        return path;
+    }
+}
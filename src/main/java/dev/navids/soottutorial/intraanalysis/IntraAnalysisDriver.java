@@ -0,0 +1,121 @@
+package dev.navids.soottutorial.intraanalysis;
+
+import dev.navids.soottutorial.intraanalysis.npanalysis.NPAMain;
+import dev.navids.soottutorial.intraanalysis.npanalysis.NullPointerCache;
+import dev.navids.soottutorial.intraanalysis.usagefinder.UsageFinder;
+import soot.*;
+import soot.jimple.Stmt;
+import soot.options.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+// Runs an intraprocedural analysis over every application method of a process directory or jar on a fork-join pool.
+// Bodies are retrieved (and their invoked methods resolved) sequentially, since that part mutates the Scene; only the
+// per-method analyses run in parallel and their findings are collected into a map sorted by method signature.
+public class IntraAnalysisDriver {
+
+    public interface MethodAnalysis {
+        List<String> analyze(Body body);
+    }
+
+    public static void setupSoot(String processPath) {
+        G.reset();
+        Options.v().set_allow_phantom_refs(true);
+        Options.v().set_prepend_classpath(true);
+        Options.v().set_keep_line_number(true);
+        Options.v().set_keep_offset(true);
+        Options.v().set_process_dir(Collections.singletonList(processPath));
+        Scene.v().loadNecessaryClasses();
+    }
+
+    public static List<Body> retrieveApplicationBodies() {
+        List<Body> bodies = new ArrayList<>();
+        for (SootClass sootClass : new ArrayList<>(Scene.v().getApplicationClasses())) {
+            for (SootMethod sootMethod : new ArrayList<>(sootClass.getMethods())) {
+                if (!sootMethod.isConcrete())
+                    continue;
+                Body body = sootMethod.retrieveActiveBody();
+                // Resolving the invoked methods may add phantom methods to the Scene, so it's done before the parallel phase
+                for (Unit unit : body.getUnits()) {
+                    if (((Stmt) unit).containsInvokeExpr())
+                        ((Stmt) unit).getInvokeExpr().getMethod();
+                }
+                bodies.add(body);
+            }
+        }
+        return bodies;
+    }
+
+    public static SortedMap<String, List<String>> analyze(List<Body> bodies, MethodAnalysis analysis, int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Map<String, List<String>> findings = pool.submit(() -> bodies.parallelStream()
+                    .collect(Collectors.toConcurrentMap(body -> body.getMethod().getSignature(), analysis::analyze))).get();
+            SortedMap<String, List<String>> sortedFindings = new TreeMap<>();
+            for (Map.Entry<String, List<String>> entry : findings.entrySet()) {
+                if (!entry.getValue().isEmpty())
+                    sortedFindings.put(entry.getKey(), entry.getValue());
+            }
+            return sortedFindings;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("The analysis was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("The analysis of a method failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        NullPointerCache cache = null;
+        List<String> positionalArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j") && i + 1 < args.length)
+                parallelism = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--cache") && i + 1 < args.length)
+                cache = new NullPointerCache(new File(args[++i]));
+            else
+                positionalArgs.add(args[i]);
+        }
+        if (positionalArgs.size() < 2) {
+            System.err.println("Usage: IntraAnalysisDriver <process_dir_or_jar> NullPointerAnalysis|UsageFinder [<method_subsignature> [<class_signature>]] [-j <threads>] [--cache <file>]");
+            return;
+        }
+        MethodAnalysis analysis;
+        if (positionalArgs.get(1).equals("NullPointerAnalysis")) {
+            analysis = cache != null ? cache::findNullPointerUsages : NPAMain::findNullPointerUsages;
+        } else if (positionalArgs.get(1).equals("UsageFinder") && positionalArgs.size() > 2) {
+            String methodSubsignature = positionalArgs.get(2);
+            String classSignature = positionalArgs.size() > 3 ? positionalArgs.get(3) : null;
+            analysis = body -> UsageFinder.findUsages(body, methodSubsignature, classSignature)
+                    .stream().map(Object::toString).collect(Collectors.toList());
+        } else {
+            System.err.println("The analysis should be NullPointerAnalysis or UsageFinder <method_subsignature> [<class_signature>]");
+            return;
+        }
+        setupSoot(positionalArgs.get(0));
+        List<Body> bodies = retrieveApplicationBodies();
+        System.out.println(String.format("Analyzing %d methods using %d threads...", bodies.size(), parallelism));
+        SortedMap<String, List<String>> findings = analyze(bodies, analysis, parallelism);
+        for (Map.Entry<String, List<String>> entry : findings.entrySet()) {
+            System.out.println("Method: " + entry.getKey());
+            for (String finding : entry.getValue())
+                System.out.println("    " + finding);
+        }
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.err.println(String.format("Null pointer cache: %d method(s) reused, %d method(s) analyzed", cache.getHits(), cache.getMisses()));
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package dev.navids.soottutorial.intraanalysis.npanalysis;
+
+import soot.Local;
+import soot.toolkits.scalar.AbstractBoundedFlowSet;
+import soot.toolkits.scalar.FlowSet;
+
+import java.util.*;
+
+// A drop-in alternative to NullFlowSet that stores the null locals as a bit vector over a LocalIndex.
+// When both operands share the same LocalIndex, copy, union, intersection and difference are word-wise operations.
+public class BitNullFlowSet extends AbstractBoundedFlowSet<Local> {
+
+    private final LocalIndex localIndex;
+    private final long[] words;
+
+    public BitNullFlowSet(LocalIndex localIndex) {
+        super();
+        this.localIndex = localIndex;
+        this.words = new long[(localIndex.size() + 63) >>> 6];
+    }
+
+    private BitNullFlowSet(LocalIndex localIndex, long[] words) {
+        this.localIndex = localIndex;
+        this.words = words;
+    }
+
+    public LocalIndex getLocalIndex() {
+        return localIndex;
+    }
+
+    // Returns the other set as a BitNullFlowSet if it is numbered by the same LocalIndex, otherwise null
+    private BitNullFlowSet sameIndex(FlowSet<Local> other) {
+        if (other instanceof BitNullFlowSet && ((BitNullFlowSet) other).localIndex == localIndex)
+            return (BitNullFlowSet) other;
+        return null;
+    }
+
+    @Override
+    public BitNullFlowSet clone() {
+        return new BitNullFlowSet(localIndex, words.clone());
+    }
+
+    @Override
+    public BitNullFlowSet emptySet() {
+        return new BitNullFlowSet(localIndex);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (long word : words)
+            size += Long.bitCount(word);
+        return size;
+    }
+
+    @Override
+    public void add(Local local) {
+        int index = localIndex.indexOf(local);
+        if (index < 0)
+            throw new IllegalArgumentException(String.format("The local %s is not numbered by this flow set's LocalIndex", local));
+        words[index >>> 6] |= 1L << index;
+    }
+
+    @Override
+    public void remove(Local local) {
+        int index = localIndex.indexOf(local);
+        if (index >= 0)
+            words[index >>> 6] &= ~(1L << index);
+    }
+
+    @Override
+    public boolean contains(Local local) {
+        int index = localIndex.indexOf(local);
+        return index >= 0 && (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(words, 0L);
+    }
+
+    @Override
+    public void copy(FlowSet<Local> dest) {
+        BitNullFlowSet bitDest = sameIndex(dest);
+        if (bitDest == null) {
+            super.copy(dest);
+            return;
+        }
+        System.arraycopy(words, 0, bitDest.words, 0, words.length);
+    }
+
+    @Override
+    public void union(FlowSet<Local> other, FlowSet<Local> dest) {
+        BitNullFlowSet bitOther = sameIndex(other);
+        BitNullFlowSet bitDest = sameIndex(dest);
+        if (bitOther == null || bitDest == null) {
+            super.union(other, dest);
+            return;
+        }
+        for (int i = 0; i < words.length; i++)
+            bitDest.words[i] = words[i] | bitOther.words[i];
+    }
+
+    @Override
+    public void intersection(FlowSet<Local> other, FlowSet<Local> dest) {
+        BitNullFlowSet bitOther = sameIndex(other);
+        BitNullFlowSet bitDest = sameIndex(dest);
+        if (bitOther == null || bitDest == null) {
+            super.intersection(other, dest);
+            return;
+        }
+        for (int i = 0; i < words.length; i++)
+            bitDest.words[i] = words[i] & bitOther.words[i];
+    }
+
+    @Override
+    public void difference(FlowSet<Local> other, FlowSet<Local> dest) {
+        BitNullFlowSet bitOther = sameIndex(other);
+        BitNullFlowSet bitDest = sameIndex(dest);
+        if (bitOther == null || bitDest == null) {
+            super.difference(other, dest);
+            return;
+        }
+        for (int i = 0; i < words.length; i++)
+            bitDest.words[i] = words[i] & ~bitOther.words[i];
+    }
+
+    @Override
+    public void complement() {
+        for (int i = 0; i < words.length; i++)
+            words[i] = ~words[i];
+        // Clear the bits beyond the last numbered local
+        int usedBits = localIndex.size() & 63;
+        if (usedBits != 0)
+            words[words.length - 1] &= (1L << usedBits) - 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof BitNullFlowSet && ((BitNullFlowSet) o).localIndex == localIndex)
+            return Arrays.equals(words, ((BitNullFlowSet) o).words);
+        return super.equals(o);
+    }
+
+    @Override
+    public Iterator<Local> iterator() {
+        return new Iterator<Local>() {
+            int next = nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public Local next() {
+                if (next < 0)
+                    throw new NoSuchElementException();
+                Local local = localIndex.getLocal(next);
+                next = nextSetBit(next + 1);
+                return local;
+            }
+        };
+    }
+
+    private int nextSetBit(int from) {
+        int wordIndex = from >>> 6;
+        if (wordIndex >= words.length)
+            return -1;
+        long word = words[wordIndex] & (-1L << from);
+        while (true) {
+            if (word != 0)
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            if (++wordIndex == words.length)
+                return -1;
+            word = words[wordIndex];
+        }
+    }
+
+    @Override
+    public List<Local> toList() {
+        List<Local> list = new ArrayList<>(size());
+        for (Local local : this)
+            list.add(local);
+        return list;
+    }
+}
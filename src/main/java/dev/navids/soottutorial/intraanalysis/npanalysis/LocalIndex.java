@@ -0,0 +1,46 @@
+package dev.navids.soottutorial.intraanalysis.npanalysis;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+import soot.Local;
+import soot.Unit;
+import soot.ValueBox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Gives each local of a body a dense index (0, 1, 2, ...) so flow sets over locals can be stored as bit vectors.
+// The numbering is computed once per body and shared by all flow sets of an analysis.
+public class LocalIndex {
+
+    private final TObjectIntHashMap<Local> localToIndex = new TObjectIntHashMap<>(16, 0.5f, -1);
+    private final List<Local> indexToLocal = new ArrayList<>();
+
+    public LocalIndex(Iterable<Unit> units) {
+        for (Unit unit : units) {
+            for (ValueBox valueBox : unit.getUseAndDefBoxes()) {
+                if (valueBox.getValue() instanceof Local)
+                    addLocal((Local) valueBox.getValue());
+            }
+        }
+    }
+
+    private void addLocal(Local local) {
+        if (localToIndex.containsKey(local))
+            return;
+        localToIndex.put(local, indexToLocal.size());
+        indexToLocal.add(local);
+    }
+
+    // Returns -1 if the local does not appear in the indexed units
+    public int indexOf(Local local) {
+        return localToIndex.get(local);
+    }
+
+    public Local getLocal(int index) {
+        return indexToLocal.get(index);
+    }
+
+    public int size() {
+        return indexToLocal.size();
+    }
+}
@@ -0,0 +1,60 @@
+package dev.navids.soottutorial.intraanalysis.npanalysis;
+
+import soot.Local;
+import soot.toolkits.scalar.FlowSet;
+
+import java.util.Arrays;
+
+// The lattice element of MultiModeNullPointerAnalysis: one BitNullFlowSet per AnalysisMode, side by side.
+// MUST facts are merged by intersection, MAY_O and MAY_P facts by union.
+public class MultiModeNullFlowSet {
+
+    private static final NullPointerAnalysis.AnalysisMode[] MODES = NullPointerAnalysis.AnalysisMode.values();
+    private final BitNullFlowSet[] modeSets = new BitNullFlowSet[MODES.length];
+
+    public MultiModeNullFlowSet(LocalIndex localIndex) {
+        for (int i = 0; i < modeSets.length; i++)
+            modeSets[i] = new BitNullFlowSet(localIndex);
+    }
+
+    public FlowSet<Local> get(NullPointerAnalysis.AnalysisMode analysisMode) {
+        return modeSets[analysisMode.ordinal()];
+    }
+
+    public void copy(MultiModeNullFlowSet dest) {
+        for (int i = 0; i < modeSets.length; i++)
+            modeSets[i].copy(dest.modeSets[i]);
+    }
+
+    public void merge(MultiModeNullFlowSet other, MultiModeNullFlowSet dest) {
+        for (int i = 0; i < modeSets.length; i++) {
+            if (MODES[i] == NullPointerAnalysis.AnalysisMode.MUST)
+                modeSets[i].intersection(other.modeSets[i], dest.modeSets[i]);
+            else
+                modeSets[i].union(other.modeSets[i], dest.modeSets[i]);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MultiModeNullFlowSet))
+            return false;
+        return Arrays.equals(modeSets, ((MultiModeNullFlowSet) o).modeSets);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(modeSets);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < modeSets.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(MODES[i]).append("=").append(modeSets[i]);
+        }
+        return sb.append("}").toString();
+    }
+}
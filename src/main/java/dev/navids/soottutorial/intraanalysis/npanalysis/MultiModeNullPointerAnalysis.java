@@ -0,0 +1,58 @@
+package dev.navids.soottutorial.intraanalysis.npanalysis;
+
+import soot.Local;
+import soot.Unit;
+import soot.toolkits.graph.DirectedGraph;
+import soot.toolkits.scalar.FlowSet;
+import soot.toolkits.scalar.ForwardFlowAnalysis;
+
+// Runs the MUST, MAY_O and MAY_P null pointer analyses in a single fixpoint over the graph.
+// getFlowBefore(unit, mode) gives the same answer as NullPointerAnalysis(graph, mode).getFlowBefore(unit).
+public class MultiModeNullPointerAnalysis extends ForwardFlowAnalysis<Unit, MultiModeNullFlowSet> {
+
+    private static final NullPointerAnalysis.AnalysisMode[] MODES = NullPointerAnalysis.AnalysisMode.values();
+    private final LocalIndex localIndex;
+
+    public MultiModeNullPointerAnalysis(DirectedGraph<Unit> graph) {
+        super(graph);
+        this.localIndex = new LocalIndex(graph);
+        doAnalysis();
+    }
+
+    public FlowSet<Local> getFlowBefore(Unit unit, NullPointerAnalysis.AnalysisMode analysisMode) {
+        return getFlowBefore(unit).get(analysisMode);
+    }
+
+    public FlowSet<Local> getFlowAfter(Unit unit, NullPointerAnalysis.AnalysisMode analysisMode) {
+        return getFlowAfter(unit).get(analysisMode);
+    }
+
+    @Override
+    protected void flowThrough(MultiModeNullFlowSet inSet, Unit unit, MultiModeNullFlowSet outSet) {
+        inSet.copy(outSet);
+        for (NullPointerAnalysis.AnalysisMode mode : MODES) {
+            NullPointerAnalysis.kill(mode, inSet.get(mode), unit, outSet.get(mode));
+            NullPointerAnalysis.generate(mode, inSet.get(mode), unit, outSet.get(mode));
+        }
+    }
+
+    @Override
+    protected MultiModeNullFlowSet newInitialFlow() {
+        return new MultiModeNullFlowSet(localIndex);
+    }
+
+    @Override
+    protected void merge(MultiModeNullFlowSet inSet1, MultiModeNullFlowSet inSet2, MultiModeNullFlowSet outSet) {
+        inSet1.merge(inSet2, outSet);
+    }
+
+    @Override
+    protected void mergeInto(Unit succNode, MultiModeNullFlowSet inout, MultiModeNullFlowSet in) {
+        inout.merge(in, inout);
+    }
+
+    @Override
+    protected void copy(MultiModeNullFlowSet source, MultiModeNullFlowSet dest) {
+        source.copy(dest);
+    }
+}
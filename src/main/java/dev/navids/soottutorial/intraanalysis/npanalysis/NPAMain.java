@@ -8,12 +8,16 @@ import soot.toolkits.graph.TrapUnitGraph;
 import soot.toolkits.graph.UnitGraph;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class NPAMain {
     public static String sourceDirectory = System.getProperty("user.dir") + File.separator + "demo" + File.separator + "IntraAnalysis";
     public static String clsName = "NullPointerExample";
+    static List<NullPointerAnalysis.AnalysisMode> reportedModes = Arrays.asList(NullPointerAnalysis.AnalysisMode.MUST,
+            NullPointerAnalysis.AnalysisMode.MAY_O, NullPointerAnalysis.AnalysisMode.MAY_P);
 
     public static void setupSoot() {
         G.reset();
@@ -28,40 +32,50 @@ public class NPAMain {
 
 
     public static void main(String[] args) {
+        // If a cache file is given, the reports of methods whose body did not change are read from it
+        NullPointerCache cache = args.length > 0 ? new NullPointerCache(new File(args[0])) : null;
         setupSoot();
         SootClass mainClass = Scene.v().getSootClass(clsName);
         for (SootMethod sm : mainClass.getMethods()) {
             System.out.println("Method: " + sm.getSignature());
             JimpleBody body = (JimpleBody) sm.retrieveActiveBody();
-            UnitGraph unitGraph = new TrapUnitGraph(body);
-            List<NullPointerAnalysis> npAnalyzers = new ArrayList<>();
-            npAnalyzers.add(new NullPointerAnalysis(unitGraph, NullPointerAnalysis.AnalysisMode.MUST));
-            npAnalyzers.add(new NullPointerAnalysis(unitGraph, NullPointerAnalysis.AnalysisMode.MAY_O));
-            npAnalyzers.add(new NullPointerAnalysis(unitGraph, NullPointerAnalysis.AnalysisMode.MAY_P));
-            int c = 0;
-            for(Unit unit : body.getUnits()){
-                c++;
-//                System.out.println("("+c+") " + unit + " --- " + mayNPAnalysis.getFlowBefore(unit) + " " + mustNPAnalysis.getFlowBefore(unit));
-//                if(nullPointerAnalysis.getFlowBefore(unit).size() == 0)
-//                    continue;
-                for(ValueBox usedValueBox : unit.getUseBoxes()){
-                    if(usedValueBox.getValue() instanceof Local){
-                        Local usedLocal = (Local) usedValueBox.getValue();
-                        for(NullPointerAnalysis npa: npAnalyzers){
-                            if(npa.getFlowBefore(unit).contains(usedLocal)){
-                                System.out.println("    Line " + unit.getJavaSourceStartLineNumber() +": " + npa.analysisMode + " NullPointer usage of local " + usedLocal + " in unit " + unit);
-                            }
-                        }
+            List<String> reports = cache != null ? cache.findNullPointerUsages(body) : findNullPointerUsages(body);
+            for (String report : reports)
+                System.out.println("    " + report);
+        }
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.err.println(String.format("Null pointer cache: %d method(s) reused, %d method(s) analyzed", cache.getHits(), cache.getMisses()));
+        }
+    }
 
-//                        if(mustNPAnalysis.getFlowBefore(unit).contains(usedLocal)){
-//                            System.out.println("    Line " + unit.getJavaSourceStartLineNumber() +": MUST NullPointer usage of local " + usedLocal + " in unit (" + c +") " + unit);
-//                        }
-                    }
-                    if(unit instanceof InvokeStmt && usedValueBox.getValue().getType().equals(NullType.v())){
-                        System.out.println("    Line " + unit.getJavaSourceStartLineNumber() +": MUST NullPointer usage in unit (" + c +") " + unit);
+    // Returns a report line for every use of a (possibly) null local in the body, in the order of its units
+    public static List<String> findNullPointerUsages(Body body) {
+        List<String> reports = new ArrayList<>();
+        UnitGraph unitGraph = new TrapUnitGraph(body);
+        // All three modes are computed in one fixpoint over the graph
+        MultiModeNullPointerAnalysis npAnalysis = new MultiModeNullPointerAnalysis(unitGraph);
+        int c = 0;
+        for(Unit unit : body.getUnits()){
+            c++;
+            for(ValueBox usedValueBox : unit.getUseBoxes()){
+                if(usedValueBox.getValue() instanceof Local){
+                    Local usedLocal = (Local) usedValueBox.getValue();
+                    for(NullPointerAnalysis.AnalysisMode mode : reportedModes){
+                        if(npAnalysis.getFlowBefore(unit, mode).contains(usedLocal)){
+                            reports.add("Line " + unit.getJavaSourceStartLineNumber() +": " + mode + " NullPointer usage of local " + usedLocal + " in unit " + unit);
+                        }
                     }
                 }
+                if(unit instanceof InvokeStmt && usedValueBox.getValue().getType().equals(NullType.v())){
+                    reports.add("Line " + unit.getJavaSourceStartLineNumber() +": MUST NullPointer usage in unit (" + c +") " + unit);
+                }
             }
         }
+        return reports;
     }
 }
@@ -41,6 +41,11 @@ public class NullFlowSet extends AbstractBoundedFlowSet<Local> {
             nullLocals.remove(local);
     }
 
+    @Override
+    public void clear() {
+        nullLocals.clear();
+    }
+
     @Override
     public boolean contains(Local local) {
         return nullLocals.contains(local);
@@ -5,62 +5,105 @@ import soot.Local;
 import soot.Unit;
 import soot.jimple.*;
 import soot.toolkits.graph.DirectedGraph;
+import soot.toolkits.scalar.FlowSet;
 import soot.toolkits.scalar.ForwardFlowAnalysis;
 
-public class NullPointerAnalysis extends ForwardFlowAnalysis<Unit, NullFlowSet> {
+public class NullPointerAnalysis extends ForwardFlowAnalysis<Unit, FlowSet<Local>> {
 
     enum AnalysisMode {
         MUST,
         MAY_P,
         MAY_O
     }
+
+    // HASH_SET uses NullFlowSet, BIT_VECTOR uses BitNullFlowSet over the locals of the analyzed graph
+    enum FlowSetType {
+        HASH_SET,
+        BIT_VECTOR
+    }
     AnalysisMode analysisMode;
-    public NullPointerAnalysis(DirectedGraph graph, AnalysisMode analysisMode) {
+    FlowSetType flowSetType;
+    private LocalIndex localIndex;
+    public NullPointerAnalysis(DirectedGraph<Unit> graph, AnalysisMode analysisMode) {
+        this(graph, analysisMode, FlowSetType.HASH_SET);
+    }
+
+    public NullPointerAnalysis(DirectedGraph<Unit> graph, AnalysisMode analysisMode, FlowSetType flowSetType) {
         super(graph);
         this.analysisMode = analysisMode;
+        this.flowSetType = flowSetType;
+        if (flowSetType == FlowSetType.BIT_VECTOR)
+            this.localIndex = new LocalIndex(graph);
         doAnalysis();
     }
 
     @Override
-    protected void flowThrough(NullFlowSet inSet, Unit unit, NullFlowSet outSet) {
+    protected void flowThrough(FlowSet<Local> inSet, Unit unit, FlowSet<Local> outSet) {
         inSet.copy(outSet);
         kill(inSet, unit, outSet);
         generate(inSet, unit, outSet);
     }
 
     @Override
-    protected NullFlowSet newInitialFlow() {
+    protected FlowSet<Local> newInitialFlow() {
+        if (flowSetType == FlowSetType.BIT_VECTOR)
+            return new BitNullFlowSet(localIndex);
         return new NullFlowSet();
     }
 
 
     @Override
-    protected void merge(NullFlowSet inSet1, NullFlowSet inSet2, NullFlowSet outSet) {
+    protected void merge(FlowSet<Local> inSet1, FlowSet<Local> inSet2, FlowSet<Local> outSet) {
         if(analysisMode != AnalysisMode.MUST)
             inSet1.union(inSet2, outSet);
         else
             inSet1.intersection(inSet2, outSet);
     }
 
+    // BitNullFlowSet merges in place instead of going through a temporary flow set. NullFlowSet can't: its intersection
+    // (AbstractFlowSet's) clears the destination before reading it.
+    @Override
+    protected void mergeInto(Unit succNode, FlowSet<Local> inout, FlowSet<Local> in) {
+        if (inout instanceof BitNullFlowSet)
+            merge(inout, in, inout);
+        else
+            super.mergeInto(succNode, inout, in);
+    }
+
     @Override
-    protected void copy(NullFlowSet source, NullFlowSet dest) {
+    protected void copy(FlowSet<Local> source, FlowSet<Local> dest) {
         source.copy(dest);
     }
 
-    protected void kill(NullFlowSet inSet, Unit unit, NullFlowSet outSet){
+    protected void kill(FlowSet<Local> inSet, Unit unit, FlowSet<Local> outSet){
+        kill(analysisMode, inSet, unit, outSet);
+    }
+
+    protected void generate(FlowSet<Local> inSet, Unit unit, FlowSet<Local> outSet){
+        generate(analysisMode, inSet, unit, outSet);
+    }
+
+    // The transfer functions are static so MultiModeNullPointerAnalysis can apply them to each mode's flow set
+    static void kill(AnalysisMode analysisMode, FlowSet<Local> inSet, Unit unit, FlowSet<Local> outSet){
         unit.apply(new AbstractStmtSwitch() {
             @Override
             public void caseAssignStmt(AssignStmt stmt) {
+                // Only locals are tracked, stores to fields and array elements are ignored
+                if (!(stmt.getLeftOp() instanceof Local))
+                    return;
                 Local leftOp = (Local) stmt.getLeftOp();
                 outSet.remove(leftOp);
             }
         });
     }
 
-    protected void generate(NullFlowSet inSet, Unit unit, NullFlowSet outSet){
+    static void generate(AnalysisMode analysisMode, FlowSet<Local> inSet, Unit unit, FlowSet<Local> outSet){
         unit.apply(new AbstractStmtSwitch() {
             @Override
             public void caseAssignStmt(AssignStmt stmt) {
+                // Only locals are tracked, stores to fields and array elements are ignored
+                if (!(stmt.getLeftOp() instanceof Local))
+                    return;
                 Local leftOp = (Local) stmt.getLeftOp();
                 stmt.getRightOp().apply(new AbstractJimpleValueSwitch() {
                     @Override
@@ -0,0 +1,116 @@
+package dev.navids.soottutorial.intraanalysis.npanalysis;
+
+import soot.Body;
+import soot.Unit;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An on-disk cache of NPAMain.findNullPointerUsages results. The key is a SHA-256 hash of the method's Jimple body,
+// its source line numbers (they appear in the reports) and the reported analysis modes, so only methods whose body
+// changed since the previous run are analyzed again. It can be shared by the threads of IntraAnalysisDriver.
+public class NullPointerCache {
+    private static final int VERSION = 1;
+
+    private final File cacheFile;
+    private final Map<String, List<String>> storedReports = new ConcurrentHashMap<>();
+    // Only the entries used in this run are saved, so reports of deleted or changed methods do not pile up
+    private final Map<String, List<String>> usedReports = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public NullPointerCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        if (cacheFile.exists())
+            load();
+    }
+
+    public List<String> findNullPointerUsages(Body body) {
+        String key = cacheKey(body);
+        List<String> reports = storedReports.get(key);
+        if (reports == null) {
+            misses.incrementAndGet();
+            reports = NPAMain.findNullPointerUsages(body);
+        } else {
+            hits.incrementAndGet();
+        }
+        usedReports.put(key, reports);
+        return reports;
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    static String cacheKey(Body body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(NPAMain.reportedModes.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(body.getMethod().getSignature().getBytes(StandardCharsets.UTF_8));
+            digest.update(body.toString().getBytes(StandardCharsets.UTF_8));
+            for (Unit unit : body.getUnits()) {
+                int line = unit.getJavaSourceStartLineNumber();
+                digest.update(new byte[]{(byte) (line >>> 24), (byte) (line >>> 16), (byte) (line >>> 8), (byte) line});
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest())
+                key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != VERSION) {
+                System.err.println("Ignoring the null pointer cache " + cacheFile + " since it was written by another version.");
+                return;
+            }
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String key = in.readUTF();
+                int reportCount = in.readInt();
+                List<String> reports = new ArrayList<>(reportCount);
+                for (int j = 0; j < reportCount; j++)
+                    reports.add(in.readUTF());
+                storedReports.put(key, reports);
+            }
+        } catch (IOException e) {
+            System.err.println("Ignoring the unreadable null pointer cache " + cacheFile + ": " + e.getMessage());
+            storedReports.clear();
+        }
+    }
+
+    public void save() throws IOException {
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        // Write to a temporary file first so an interrupted run cannot leave a truncated cache behind
+        File tmpFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(VERSION);
+            out.writeInt(usedReports.size());
+            for (Map.Entry<String, List<String>> entry : usedReports.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (String report : entry.getValue())
+                    out.writeUTF(report);
+            }
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
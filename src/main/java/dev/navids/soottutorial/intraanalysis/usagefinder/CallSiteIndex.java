@@ -0,0 +1,92 @@
+package dev.navids.soottutorial.intraanalysis.usagefinder;
+
+import dev.navids.soottutorial.util.SignatureInterner;
+import soot.*;
+import soot.jimple.InvokeStmt;
+import soot.util.NumberedString;
+
+import java.util.*;
+
+// An inverted index from invoked methods to the statements that invoke them, built in one pass over the bodies.
+// It answers the same question as UsageFinder.doesInvokeTheMethod for every unit, but each query is a couple of
+// hash lookups on Soot's interned subsignatures instead of a scan of all the units.
+public class CallSiteIndex {
+
+    public static class CallSite {
+        private final SootMethod caller;
+        private final Unit unit;
+
+        CallSite(SootMethod caller, Unit unit) {
+            this.caller = caller;
+            this.unit = unit;
+        }
+
+        public SootMethod getCaller() {
+            return caller;
+        }
+
+        public Unit getUnit() {
+            return unit;
+        }
+
+        @Override
+        public String toString() {
+            return caller.getSignature() + ": " + unit;
+        }
+    }
+
+    private final Map<NumberedString, List<CallSite>> subsignatureToCallSites = new HashMap<>();
+    private final Map<NumberedString, Map<SootClass, List<CallSite>>> subsignatureToClassCallSites = new HashMap<>();
+
+    public CallSiteIndex(Collection<SootClass> classes) {
+        for (SootClass sootClass : classes) {
+            for (SootMethod sootMethod : sootClass.getMethods()) {
+                if (!sootMethod.isConcrete())
+                    continue;
+                for (Unit unit : sootMethod.retrieveActiveBody().getUnits()) {
+                    if (unit instanceof InvokeStmt)
+                        addCallSite(new CallSite(sootMethod, unit), ((InvokeStmt) unit).getInvokeExpr().getMethod());
+                }
+            }
+        }
+    }
+
+    public static CallSiteIndex ofApplicationClasses() {
+        return new CallSiteIndex(new ArrayList<>(Scene.v().getApplicationClasses()));
+    }
+
+    private void addCallSite(CallSite callSite, SootMethod invokedMethod) {
+        NumberedString subsignature = invokedMethod.getNumberedSubSignature();
+        subsignatureToCallSites.computeIfAbsent(subsignature, k -> new ArrayList<>()).add(callSite);
+        subsignatureToClassCallSites.computeIfAbsent(subsignature, k -> new HashMap<>())
+                .computeIfAbsent(invokedMethod.getDeclaringClass(), k -> new ArrayList<>()).add(callSite);
+    }
+
+    // If classSignature is null, the usages of methods with the given subsignature in any class are returned
+    public List<CallSite> findUsages(String methodSubsignature, String classSignature) {
+        NumberedString subsignature = SignatureInterner.v().findSubSignature(methodSubsignature);
+        if (subsignature == null)
+            return Collections.emptyList();
+        if (classSignature == null)
+            return subsignatureToCallSites.getOrDefault(subsignature, Collections.emptyList());
+        SootClass sootClass = Scene.v().getSootClassUnsafe(classSignature, false);
+        if (sootClass == null)
+            return Collections.emptyList();
+        return subsignatureToClassCallSites.getOrDefault(subsignature, Collections.emptyMap())
+                .getOrDefault(sootClass, Collections.emptyList());
+    }
+
+    // Answers a batch of queries, each one either a method signature ("<java.io.PrintStream: void println(java.lang.String)>")
+    // or a bare subsignature ("void println(java.lang.String)") that matches any class
+    public Map<String, List<CallSite>> findUsages(Collection<String> methodSignatures) {
+        Map<String, List<CallSite>> usages = new LinkedHashMap<>();
+        for (String methodSignature : methodSignatures) {
+            if (methodSignature.startsWith("<"))
+                usages.put(methodSignature, findUsages(Scene.v().signatureToSubsignature(methodSignature),
+                        Scene.v().signatureToClass(methodSignature)));
+            else
+                usages.put(methodSignature, findUsages(methodSignature, null));
+        }
+        return usages;
+    }
+}
@@ -1,16 +1,13 @@
 package dev.navids.soottutorial.intraanalysis.usagefinder;
 
+import dev.navids.soottutorial.util.SignatureInterner;
 import soot.*;
-import soot.jimple.AbstractStmtSwitch;
 import soot.jimple.InvokeStmt;
-import soot.jimple.JimpleBody;
 import soot.options.Options;
+import soot.util.NumberedString;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.*;
 
 public class UsageFinder {
     public static String sourceDirectory = System.getProperty("user.dir") + File.separator + "demo" + File.separator + "IntraAnalysis";
@@ -26,21 +23,35 @@ public class UsageFinder {
     }
 
     public static boolean doesInvokeTheMethod(Unit u, String methodSubsignature, String classSignature) {
-        AtomicBoolean result = new AtomicBoolean(false);
-        u.apply(new AbstractStmtSwitch() {
-            @Override
-            public void caseInvokeStmt(InvokeStmt invokeStmt) {
-                String invokedSubsignature = invokeStmt.getInvokeExpr().getMethod().getSubSignature();
-                String invokedClassSignature = invokeStmt.getInvokeExpr().getMethod().getDeclaringClass().getName();
-                if (invokedSubsignature.equals(methodSubsignature)) {
-                    if (classSignature == null || invokedClassSignature.equals(classSignature)) {
-                        result.set(true);
-                    }
-                }
+        NumberedString subsignature = SignatureInterner.v().findSubSignature(methodSubsignature);
+        SootClass sootClass = classSignature != null ? Scene.v().getSootClassUnsafe(classSignature, false) : null;
+        // No method has this subsignature, or the class does not exist
+        if (subsignature == null || (classSignature != null && sootClass == null))
+            return false;
+        return doesInvokeTheMethod(u, subsignature, sootClass);
+    }
 
-            }
-        });
-        return result.get();
+    // Compares the interned subsignature and the class by identity; a null sootClass matches any class
+    public static boolean doesInvokeTheMethod(Unit u, NumberedString methodSubsignature, SootClass sootClass) {
+        if (!(u instanceof InvokeStmt))
+            return false;
+        SootMethod invokedMethod = ((InvokeStmt) u).getInvokeExpr().getMethod();
+        return invokedMethod.getNumberedSubSignature() == methodSubsignature
+                && (sootClass == null || invokedMethod.getDeclaringClass() == sootClass);
+    }
+
+    public static List<Unit> findUsages(Body body, String methodSubsignature, String classSignature) {
+        List<Unit> usageFound = new ArrayList<>();
+        NumberedString subsignature = SignatureInterner.v().findSubSignature(methodSubsignature);
+        SootClass sootClass = classSignature != null ? Scene.v().getSootClassUnsafe(classSignature, false) : null;
+        if (subsignature == null || (classSignature != null && sootClass == null))
+            return usageFound;
+        for (Iterator<Unit> it = body.getUnits().snapshotIterator(); it.hasNext(); ) {
+            Unit u = it.next();
+            if (doesInvokeTheMethod(u, subsignature, sootClass))
+                usageFound.add(u);
+        }
+        return usageFound;
     }
 
     public static void main(String[] args) {
@@ -49,6 +60,17 @@ public class UsageFinder {
             return;
         }
         setupSoot();
+        SootClass mainClass = Scene.v().getSootClass(clsName);
+        // The call sites of all methods are indexed once, then each query is a lookup in the index
+        CallSiteIndex callSiteIndex = new CallSiteIndex(Collections.singletonList(mainClass));
+        if (args[0].equals("--batch")) {
+            List<String> methodSignatures = Arrays.asList(args).subList(1, args.length);
+            for (Map.Entry<String, List<CallSiteIndex.CallSite>> entry : callSiteIndex.findUsages(methodSignatures).entrySet()) {
+                System.out.println("Searching the usages of method " + entry.getKey() + "...");
+                printUsages(entry.getValue());
+            }
+            return;
+        }
         String usageMethodSubsignature = args[0];
         String usageClassSignature = null;
         String classMessage = "";
@@ -57,24 +79,19 @@ public class UsageFinder {
             classMessage = " of the class " + usageClassSignature;
         }
         System.out.println("Searching the usages of method " + usageMethodSubsignature + classMessage + "...");
-        SootClass mainClass = Scene.v().getSootClass(clsName);
-        for (SootMethod sm : mainClass.getMethods()) {
-            JimpleBody body = (JimpleBody) sm.retrieveActiveBody();
-
+        printUsages(callSiteIndex.findUsages(usageMethodSubsignature, usageClassSignature));
+    }
 
-            List<Unit> usageFound = new ArrayList<>();
-            for (Iterator<Unit> it = body.getUnits().snapshotIterator(); it.hasNext(); ) {
-                Unit u = it.next();
-                if (doesInvokeTheMethod(u, usageMethodSubsignature, usageClassSignature))
-                    usageFound.add(u);
-            }
-            if (usageFound.size() > 0) {
-                System.out.println(usageFound.size() + " Usage(s) found in the method " + sm.getSignature());
-                for (Unit u : usageFound) {
-                    System.out.println("   " + u.toString());
-                }
+    private static void printUsages(List<CallSiteIndex.CallSite> callSites) {
+        // Group the call sites by their caller, keeping the order in which they were indexed
+        Map<SootMethod, List<Unit>> usagesPerMethod = new LinkedHashMap<>();
+        for (CallSiteIndex.CallSite callSite : callSites)
+            usagesPerMethod.computeIfAbsent(callSite.getCaller(), k -> new ArrayList<>()).add(callSite.getUnit());
+        for (Map.Entry<SootMethod, List<Unit>> entry : usagesPerMethod.entrySet()) {
+            System.out.println(entry.getValue().size() + " Usage(s) found in the method " + entry.getKey().getSignature());
+            for (Unit u : entry.getValue()) {
+                System.out.println("   " + u.toString());
             }
-
         }
     }
 }
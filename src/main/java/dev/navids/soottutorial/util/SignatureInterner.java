@@ -0,0 +1,82 @@
+package dev.navids.soottutorial.util;
+
+import soot.RefType;
+import soot.Scene;
+import soot.SootMethod;
+import soot.util.NumberedString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Turns the class names and subsignatures that analyses compare against into handles, so the hot checks become
+// identity comparisons instead of building and comparing strings.
+// A key (e.g. typeKey("java.lang.Object")) is registered once and is valid in every Scene; SignatureInterner.v()
+// resolves keys against the current Scene and is recreated after G.reset().
+public class SignatureInterner {
+    private static final List<String> typeNames = new ArrayList<>();
+
+    private static volatile SignatureInterner instance;
+
+    private final Scene scene;
+    private volatile RefType[] types = new RefType[0];
+
+    private SignatureInterner(Scene scene) {
+        this.scene = scene;
+    }
+
+    public static SignatureInterner v() {
+        SignatureInterner current = instance;
+        if (current == null || current.scene != Scene.v()) {
+            synchronized (SignatureInterner.class) {
+                current = instance;
+                if (current == null || current.scene != Scene.v()) {
+                    current = new SignatureInterner(Scene.v());
+                    instance = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    public static synchronized int typeKey(String className) {
+        return keyOf(typeNames, className);
+    }
+
+    private static int keyOf(List<String> names, String name) {
+        int key = names.indexOf(name);
+        if (key >= 0)
+            return key;
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    public RefType type(int typeKey) {
+        RefType[] current = types;
+        if (typeKey < current.length && current[typeKey] != null)
+            return current[typeKey];
+        return resolveType(typeKey);
+    }
+
+    private synchronized RefType resolveType(int typeKey) {
+        if (typeKey >= types.length)
+            types = Arrays.copyOf(types, Math.max(typeKey + 1, types.length * 2));
+        if (types[typeKey] == null) {
+            String className;
+            synchronized (SignatureInterner.class) {
+                className = typeNames.get(typeKey);
+            }
+            types[typeKey] = RefType.v(className);
+        }
+        return types[typeKey];
+    }
+
+    // For subsignatures that are only known at runtime (e.g. user queries); returns null if no method in the Scene has it
+    public NumberedString findSubSignature(String subSignature) {
+        return scene.getSubSigNumberer().find(subSignature);
+    }
+
+    public static boolean isInitializer(SootMethod sootMethod) {
+        return sootMethod.isConstructor() || sootMethod.isStaticInitializer();
+    }
+}
@@ -2,6 +2,7 @@ package dev.navids.soottutorial.visual;
 
 import dev.navids.soottutorial.android.AndroidUtil;
 import dev.navids.soottutorial.android.InstrumentUtil;
+import dev.navids.soottutorial.util.SignatureInterner;
 import soot.Scene;
 import soot.SootClass;
 import soot.SootMethod;
@@ -30,7 +31,7 @@ public class AndroidCallGraphFilter implements CallGraphFilter {
             return false;
         if(sootMethod.getDeclaringClass().getPackageName().startsWith("java"))
             return false;
-        if(sootMethod.toString().contains("<init>") || sootMethod.toString().contains("<clinit>"))
+        if(SignatureInterner.isInitializer(sootMethod))
             return false;
         if(sootMethod.getName().equals("dummyMainMethod"))
             return false;
@@ -1,6 +1,8 @@
 package dev.navids.soottutorial.android;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import soot.*;
 import soot.jimple.infoflow.InfoflowConfiguration;
 import soot.jimple.infoflow.android.InfoflowAndroidConfiguration;
@@ -12,6 +14,8 @@ import soot.jimple.toolkits.callgraph.Edge;
 import soot.toolkits.scalar.Pair;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -25,16 +29,32 @@ public class CGPTATest {
                                     ? System.getenv("ANDROID_HOME")+ File.separator+"platforms"
                                     : System.getProperty("user.home") + "/Documents/android/platforms";
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
-    public void testConfig(){
+    public void testConfig() throws IOException {
         String packageName = AndroidUtil.getPackageName(apkPath);
         assertEquals("dev.navids.multicomp1", packageName);
         InfoflowAndroidConfiguration config = AndroidUtil.getFlowDroidConfig(apkPath, androidJar);
         assertEquals(InfoflowConfiguration.CodeEliminationMode.NoCodeElimination, config.getCodeEliminationMode());
         assertEquals(InfoflowConfiguration.CallgraphAlgorithm.SPARK, config.getCallgraphAlgorithm());
-        SetupApplication app = new SetupApplication(config);
-        app.constructCallgraph();
-        assertEquals(3, app.getEntrypointClasses().size());
+        // FlowDroid runs once; the second setup is restored from its snapshot
+        SetupSnapshot snapshot = SetupSnapshot.getOrCreate(temporaryFolder.getRoot(), apkPath, androidJar, InfoflowConfiguration.CallgraphAlgorithm.SPARK);
+        assertFalse(snapshot.isRestored());
+        assertEquals(3, snapshot.getEntryPointClasses().size());
+        SetupSnapshot restoredSnapshot = SetupSnapshot.getOrCreate(temporaryFolder.getRoot(), apkPath, androidJar, InfoflowConfiguration.CallgraphAlgorithm.SPARK);
+        assertTrue(restoredSnapshot.isRestored());
+        assertEquals(snapshot.getEntryPointClasses(), restoredSnapshot.getEntryPointClasses());
+        assertEquals(snapshot.getDummyMainSignature(), restoredSnapshot.getDummyMainSignature());
+        assertEquals(snapshot.getCallGraphFile().edgeCount(), restoredSnapshot.getCallGraphFile().edgeCount());
+        for (String local : restoredSnapshot.getLocals()) {
+            String[] methodAndLocal = local.split("\t");
+            int[] allocSites = restoredSnapshot.getAllocSites(methodAndLocal[0], methodAndLocal[1]);
+            int[] sortedAllocSites = allocSites.clone();
+            Arrays.sort(sortedAllocSites);
+            assertArrayEquals(sortedAllocSites, allocSites);
+        }
     }
 
     @Test
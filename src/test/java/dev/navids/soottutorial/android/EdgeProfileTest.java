@@ -0,0 +1,55 @@
+package dev.navids.soottutorial.android;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static dev.navids.soottutorial.android.EdgeProfiler.EXIT;
+import static org.junit.Assert.*;
+
+public class EdgeProfileTest {
+
+    @Test
+    public void testTreeEdgesAreSolved() {
+        // for (i = 0; i < n; i++) { if (c) a(); else b(); } return; with counters on the chords 4 -> 1, 2 -> 3 and 5 -> EXIT
+        String method = "<Example: void loop(int)>";
+        List<int[]> edges = Arrays.asList(
+                new int[]{EXIT, 0, -1},
+                new int[]{0, 1, -1},
+                new int[]{1, 2, -1},
+                new int[]{1, 5, -1},
+                new int[]{2, 3, 1},
+                new int[]{2, 4, -1},
+                new int[]{3, 4, -1},
+                new int[]{4, 1, 0},
+                new int[]{5, EXIT, 2});
+        Map<Integer, Long> counts = new HashMap<>();
+        // Two calls with 10 iterations in total, 7 of which called a()
+        counts.put(0, 10L);
+        counts.put(1, 7L);
+        counts.put(2, 2L);
+        EdgeProfile edgeProfile = new EdgeProfile(Collections.singletonMap(method, edges), counts);
+        assertEquals(2, edgeProfile.getEdgeCount(method, EXIT, 0));
+        assertEquals(2, edgeProfile.getEdgeCount(method, 0, 1));
+        assertEquals(10, edgeProfile.getEdgeCount(method, 1, 2));
+        assertEquals(2, edgeProfile.getEdgeCount(method, 1, 5));
+        assertEquals(3, edgeProfile.getEdgeCount(method, 2, 4));
+        assertEquals(7, edgeProfile.getEdgeCount(method, 3, 4));
+        assertEquals(-1, edgeProfile.getEdgeCount(method, 5, 1));
+        Map<Integer, Long> blockCounts = edgeProfile.getBlockCounts(method);
+        assertEquals(Long.valueOf(2), blockCounts.get(0));
+        assertEquals(Long.valueOf(12), blockCounts.get(1));
+        assertEquals(Long.valueOf(10), blockCounts.get(4));
+        assertEquals(Long.valueOf(2), blockCounts.get(5));
+    }
+
+    @Test
+    public void testMissingCountersAreZero() {
+        String method = "<Example: void neverCalled()>";
+        List<int[]> edges = Arrays.asList(new int[]{EXIT, 0, -1}, new int[]{0, 1, -1}, new int[]{0, 2, -1},
+                new int[]{1, EXIT, 0}, new int[]{2, EXIT, 1});
+        EdgeProfile edgeProfile = new EdgeProfile(Collections.singletonMap(method, edges), Collections.emptyMap());
+        for (long count : edgeProfile.getBlockCounts(method).values())
+            assertEquals(0, count);
+    }
+}
@@ -0,0 +1,36 @@
+package dev.navids.soottutorial.android;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static dev.navids.soottutorial.android.PackageClassifier.Category.*;
+import static org.junit.Assert.*;
+
+public class PackageClassifierTest {
+
+    @Test
+    public void testDefaultPrefixes() {
+        PackageClassifier classifier = PackageClassifier.v();
+        assertEquals(FRAMEWORK, classifier.classify("android.app.Activity"));
+        assertEquals(FRAMEWORK, classifier.classify("androidx.fragment.app.Fragment"));
+        assertEquals(FRAMEWORK, classifier.classify("com.google.android.gms.ads.AdView"));
+        assertEquals(LIBRARY, classifier.classify("java.lang.Object"));
+        assertEquals(APP, classifier.classify("com.example.app.MainActivity"));
+        assertEquals(APP, classifier.classify("androidapp.Main"));
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        PackageClassifier classifier = new PackageClassifier(Collections.singletonList("android."),
+                Arrays.asList("okhttp3.", "com."), Collections.singletonList("com.example."),
+                Collections.singletonList("android.support.test."));
+        assertEquals(FRAMEWORK, classifier.classify("android.view.View"));
+        assertEquals(LIBRARY, classifier.classify("android.support.test.Runner"));
+        assertEquals(APP, classifier.classify("com.example.Main"));
+        assertEquals(LIBRARY, classifier.classify("com.squareup.Picasso"));
+        // With app prefixes given, unknown classes are considered libraries
+        assertEquals(LIBRARY, classifier.classify("org.example.Main"));
+    }
+}
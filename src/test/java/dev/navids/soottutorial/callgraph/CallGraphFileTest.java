@@ -0,0 +1,123 @@
+package dev.navids.soottutorial.callgraph;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import soot.*;
+import soot.jimple.Jimple;
+import soot.jimple.JimpleBody;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CallGraphFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private SootMethod main, a, b, c;
+    private CallGraph callGraph;
+
+    @Before
+    public void buildCallGraph() {
+        G.reset();
+        SootClass sootClass = new SootClass("Example");
+        Scene.v().addClass(sootClass);
+        main = addMethod(sootClass, "main");
+        a = addMethod(sootClass, "a");
+        b = addMethod(sootClass, "b");
+        c = addMethod(sootClass, "c");
+        callGraph = new CallGraph();
+        // main calls c, a and b, in this order, and a calls b twice; b calls main only through an implicit edge
+        addCalls(main, c, a, b);
+        addCalls(a, b, b);
+        callGraph.addEdge(new Edge(b, null, main, Kind.THREAD));
+    }
+
+    private static SootMethod addMethod(SootClass sootClass, String name) {
+        SootMethod method = new SootMethod(name, Collections.emptyList(), VoidType.v(), Modifier.PUBLIC | Modifier.STATIC);
+        sootClass.addMethod(method);
+        JimpleBody body = Jimple.v().newBody(method);
+        body.getUnits().add(Jimple.v().newNopStmt());
+        method.setActiveBody(body);
+        return method;
+    }
+
+    private void addCalls(SootMethod caller, SootMethod... callees) {
+        for (SootMethod callee : callees) {
+            Stmt stmt = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(callee.makeRef()));
+            caller.getActiveBody().getUnits().add(stmt);
+            callGraph.addEdge(new Edge(caller, stmt, callee, Kind.STATIC));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "callgraph.bin");
+        CallGraphWriter.write(callGraph, file);
+        assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+        CallGraphFile callGraphFile = CallGraphFile.open(file);
+        assertEquals(4, callGraphFile.methodCount());
+        assertEquals(6, callGraphFile.edgeCount());
+
+        // The ids are the same as the ones of a CallGraphIndex of the same callgraph
+        CallGraphIndex index = new CallGraphIndex(callGraph);
+        for (SootMethod method : new SootMethod[]{main, a, b, c}) {
+            int id = callGraphFile.idOf(method.getSignature());
+            assertEquals(index.idOf(method), id);
+            assertEquals(method.getSignature(), callGraphFile.getSignature(id));
+            assertEquals(index.outDegree(id), callGraphFile.outDegree(id));
+            int[] callees = callGraphFile.getCallees(id);
+            for (int i = 0; i < callees.length; i++)
+                assertEquals(index.callee(id, i), callees[i]);
+        }
+        assertEquals(-1, callGraphFile.idOf("<Example: void d()>"));
+        assertEquals(-1, callGraphFile.idOf(""));
+        assertEquals(-1, callGraphFile.idOf("<Example: void a()>x"));
+
+        List<String> edges = new ArrayList<>();
+        callGraphFile.forEachEdge(callGraphFile.idOf(a.getSignature()),
+                (target, unitOffset, kind) -> edges.add(callGraphFile.getSignature(target) + "@" + unitOffset + ":" + kind));
+        assertEquals(2, edges.size());
+        assertEquals("<Example: void b()>@1:STATIC", edges.get(0));
+        assertEquals("<Example: void b()>@2:STATIC", edges.get(1));
+        edges.clear();
+        callGraphFile.forEachEdge(callGraphFile.idOf(b.getSignature()),
+                (target, unitOffset, kind) -> edges.add(callGraphFile.getSignature(target) + "@" + unitOffset + ":" + kind));
+        assertEquals(Collections.singletonList("<Example: void main()>@-1:THREAD"), edges);
+        assertEquals(0, callGraphFile.outDegree(callGraphFile.idOf(c.getSignature())));
+    }
+
+    @Test
+    public void testQueries() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "callgraph.bin");
+        CallGraphWriter.write(callGraph, file);
+        CallGraphFile callGraphFile = CallGraphFile.open(file);
+        CallGraphQuery callGraphQuery = new CallGraphQuery(callGraphFile);
+        int mainId = callGraphFile.idOf(main.getSignature());
+        int aId = callGraphFile.idOf(a.getSignature());
+        int bId = callGraphFile.idOf(b.getSignature());
+        int cId = callGraphFile.idOf(c.getSignature());
+        assertArrayEquals(new int[]{mainId, bId}, callGraphQuery.shortestPath(mainId, bId));
+        assertTrue(callGraphQuery.isReachable(aId, mainId));
+        assertFalse(callGraphQuery.isReachable(cId, aId));
+        assertEquals(4, callGraphQuery.reachableCount(aId));
+        assertEquals(1, callGraphQuery.reachableCount(cId));
+        assertEquals(3, callGraphQuery.fanOut(mainId));
+        assertEquals(1, callGraphQuery.fanOut(aId));
+        assertEquals(2, callGraphQuery.fanIn(bId));
+        assertArrayEquals(new int[]{bId}, callGraphQuery.getCallers(mainId));
+        assertEquals("Example.a -> Example.b -> Example.main",
+                callGraphQuery.answer(new String[]{"path", a.getSignature(), main.getSignature()}));
+        assertEquals("not reachable", callGraphQuery.answer(new String[]{"reachable", c.getSignature(), a.getSignature()}));
+    }
+}
@@ -0,0 +1,138 @@
+package dev.navids.soottutorial.callgraph;
+
+import org.junit.Before;
+import org.junit.Test;
+import soot.*;
+import soot.jimple.Jimple;
+import soot.jimple.JimpleBody;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CallGraphIndexTest {
+
+    private final List<SootMethod> methods = new ArrayList<>();
+    private CallGraph callGraph;
+    private CallGraphIndex index;
+
+    @Before
+    public void buildCallGraph() {
+        G.reset();
+        SootClass sootClass = new SootClass("Example");
+        Scene.v().addClass(sootClass);
+        for (int i = 0; i < 100; i++) {
+            SootMethod method = new SootMethod("m" + i, Collections.emptyList(), VoidType.v(), Modifier.PUBLIC | Modifier.STATIC);
+            sootClass.addMethod(method);
+            JimpleBody body = Jimple.v().newBody(method);
+            body.getUnits().add(Jimple.v().newNopStmt());
+            method.setActiveBody(body);
+            methods.add(method);
+        }
+        // A sparse random graph with cycles; m90 ... m99 have no edges
+        callGraph = new CallGraph();
+        Random random = new Random(42);
+        for (int i = 0; i < 180; i++) {
+            SootMethod caller = methods.get(random.nextInt(90));
+            SootMethod callee = methods.get(random.nextInt(90));
+            Stmt stmt = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(callee.makeRef()));
+            caller.getActiveBody().getUnits().add(stmt);
+            callGraph.addEdge(new Edge(caller, stmt, callee, Kind.STATIC));
+        }
+        index = new CallGraphIndex(callGraph);
+    }
+
+    // The distance of each method reachable from the source, by a BFS over the CallGraph itself
+    private Map<SootMethod, Integer> naiveDistances(SootMethod source) {
+        Map<SootMethod, Integer> distances = new HashMap<>();
+        distances.put(source, 0);
+        Deque<SootMethod> queue = new ArrayDeque<>(Collections.singletonList(source));
+        while (!queue.isEmpty()) {
+            SootMethod method = queue.poll();
+            for (Iterator<Edge> it = callGraph.edgesOutOf(method); it.hasNext(); ) {
+                SootMethod callee = it.next().tgt();
+                if (!distances.containsKey(callee)) {
+                    distances.put(callee, distances.get(method) + 1);
+                    queue.add(callee);
+                }
+            }
+        }
+        return distances;
+    }
+
+    private boolean hasEdge(SootMethod caller, SootMethod callee) {
+        for (Iterator<Edge> it = callGraph.edgesOutOf(caller); it.hasNext(); ) {
+            if (it.next().tgt().equals(callee))
+                return true;
+        }
+        return false;
+    }
+
+    private void assertShortestPath(List<SootMethod> path, SootMethod source, SootMethod target, int distance) {
+        assertEquals(distance + 1, path.size());
+        assertEquals(source, path.get(0));
+        assertEquals(target, path.get(path.size() - 1));
+        for (int i = 0; i + 1 < path.size(); i++)
+            assertTrue(hasEdge(path.get(i), path.get(i + 1)));
+    }
+
+    @Test
+    public void testReachabilityMatchesNaiveBfs() {
+        for (SootMethod source : methods) {
+            Map<SootMethod, Integer> distances = naiveDistances(source);
+            CallGraphIndex.Reachability reachability = index.reachableFrom(source);
+            assertEquals(distances.keySet(), reachability.toParentMap().keySet());
+            assertEquals(distances.size(), reachability.reachableCount());
+            for (SootMethod method : methods) {
+                assertEquals(distances.containsKey(method), reachability.isReachable(method));
+                if (distances.containsKey(method))
+                    assertShortestPath(reachability.getPath(method), source, method, distances.get(method));
+            }
+        }
+    }
+
+    @Test
+    public void testBackwardQueriesMatchNaiveBfs() {
+        SootMethod target = methods.get(7);
+        Set<SootMethod> reachingMethods = new HashSet<>();
+        for (SootMethod method : methods) {
+            if (naiveDistances(method).containsKey(target))
+                reachingMethods.add(method);
+        }
+        CallGraphIndex slice = index.backwardSlice(Collections.singletonList(target));
+        Set<SootMethod> sliceMethods = new HashSet<>();
+        for (int id = 0; id < slice.size(); id++)
+            sliceMethods.add(slice.methodOf(id));
+        assertEquals(reachingMethods, sliceMethods);
+
+        for (SootMethod entryPoint : methods) {
+            List<SootMethod> path = index.findPathFromEntryPoints(Collections.singletonList(target), Collections.singletonList(entryPoint));
+            if (reachingMethods.contains(entryPoint))
+                assertShortestPath(path, entryPoint, target, naiveDistances(entryPoint).get(target));
+            else
+                assertTrue(path.isEmpty());
+        }
+    }
+
+    @Test
+    public void testMultiReachabilityMatchesNaiveBfs() {
+        // More than 64 entry points, so the reached sets take two words per method
+        List<SootMethod> entries = methods.subList(0, 95);
+        for (Collection<SootMethod> targets : Arrays.asList(Collections.<SootMethod>emptyList(), methods.subList(40, 50))) {
+            MultiReachability reachability = index.reachability(entries, targets);
+            for (SootMethod entry : entries) {
+                Map<SootMethod, Integer> distances = naiveDistances(entry);
+                for (SootMethod target : targets.isEmpty() ? methods : targets) {
+                    assertEquals(distances.containsKey(target), reachability.reaches(entry, target));
+                    if (distances.containsKey(target))
+                        assertShortestPath(reachability.getWitnessPath(entry, target), entry, target, distances.get(target));
+                    else
+                        assertTrue(reachability.getWitnessPath(entry, target).isEmpty());
+                }
+            }
+        }
+    }
+}
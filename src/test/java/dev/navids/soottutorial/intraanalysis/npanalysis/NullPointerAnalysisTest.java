@@ -0,0 +1,122 @@
+package dev.navids.soottutorial.intraanalysis.npanalysis;
+
+import org.junit.Before;
+import org.junit.Test;
+import soot.*;
+import soot.jimple.*;
+import soot.toolkits.graph.BriefUnitGraph;
+import soot.toolkits.graph.TrapUnitGraph;
+import soot.toolkits.graph.UnitGraph;
+
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class NullPointerAnalysisTest {
+
+    @Before
+    public void setUp() {
+        NPAMain.setupSoot();
+    }
+
+    @Test
+    public void testBitVectorMatchesHashSet() {
+        SootClass mainClass = Scene.v().getSootClass(NPAMain.clsName);
+        for (SootMethod sm : mainClass.getMethods()) {
+            UnitGraph unitGraph = new TrapUnitGraph(sm.retrieveActiveBody());
+            for (NullPointerAnalysis.AnalysisMode mode : NullPointerAnalysis.AnalysisMode.values()) {
+                NullPointerAnalysis hashAnalysis = new NullPointerAnalysis(unitGraph, mode, NullPointerAnalysis.FlowSetType.HASH_SET);
+                NullPointerAnalysis bitAnalysis = new NullPointerAnalysis(unitGraph, mode, NullPointerAnalysis.FlowSetType.BIT_VECTOR);
+                for (Unit unit : unitGraph) {
+                    assertTrue(bitAnalysis.getFlowBefore(unit) instanceof BitNullFlowSet);
+                    assertEquals(new HashSet<>(hashAnalysis.getFlowBefore(unit).toList()),
+                            new HashSet<>(bitAnalysis.getFlowBefore(unit).toList()));
+                    assertEquals(new HashSet<>(hashAnalysis.getFlowAfter(unit).toList()),
+                            new HashSet<>(bitAnalysis.getFlowAfter(unit).toList()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMustAtJoin() {
+        // x = null; if (i == 0) goto ret; i = 1; ret: return; x is null on both paths to the return
+        SootMethod method = new SootMethod("mustJoin", Collections.singletonList(IntType.v()), VoidType.v());
+        SootClass sootClass = new SootClass("MustJoinExample");
+        sootClass.addMethod(method);
+        JimpleBody body = Jimple.v().newBody(method);
+        method.setActiveBody(body);
+        Local i = Jimple.v().newLocal("i", IntType.v());
+        Local x = Jimple.v().newLocal("x", RefType.v("java.lang.Object"));
+        body.getLocals().add(i);
+        body.getLocals().add(x);
+        Unit ret = Jimple.v().newReturnVoidStmt();
+        body.getUnits().add(Jimple.v().newIdentityStmt(i, Jimple.v().newParameterRef(IntType.v(), 0)));
+        body.getUnits().add(Jimple.v().newAssignStmt(x, NullConstant.v()));
+        body.getUnits().add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(i, IntConstant.v(0)), ret));
+        body.getUnits().add(Jimple.v().newAssignStmt(i, IntConstant.v(1)));
+        body.getUnits().add(ret);
+        UnitGraph unitGraph = new BriefUnitGraph(body);
+        assertEquals(2, unitGraph.getPredsOf(ret).size());
+        for (NullPointerAnalysis.FlowSetType flowSetType : NullPointerAnalysis.FlowSetType.values()) {
+            NullPointerAnalysis analysis = new NullPointerAnalysis(unitGraph, NullPointerAnalysis.AnalysisMode.MUST, flowSetType);
+            assertEquals(Collections.singletonList(x), analysis.getFlowBefore(ret).toList());
+        }
+        MultiModeNullPointerAnalysis multiModeAnalysis = new MultiModeNullPointerAnalysis(unitGraph);
+        assertEquals(Collections.singletonList(x), multiModeAnalysis.getFlowBefore(ret, NullPointerAnalysis.AnalysisMode.MUST).toList());
+    }
+
+    @Test
+    public void testMultiModeMatchesSeparateAnalyses() {
+        SootClass mainClass = Scene.v().getSootClass(NPAMain.clsName);
+        for (SootMethod sm : mainClass.getMethods()) {
+            UnitGraph unitGraph = new TrapUnitGraph(sm.retrieveActiveBody());
+            MultiModeNullPointerAnalysis multiModeAnalysis = new MultiModeNullPointerAnalysis(unitGraph);
+            for (NullPointerAnalysis.AnalysisMode mode : NullPointerAnalysis.AnalysisMode.values()) {
+                NullPointerAnalysis singleModeAnalysis = new NullPointerAnalysis(unitGraph, mode);
+                for (Unit unit : unitGraph) {
+                    assertEquals(new HashSet<>(singleModeAnalysis.getFlowBefore(unit).toList()),
+                            new HashSet<>(multiModeAnalysis.getFlowBefore(unit, mode).toList()));
+                    assertEquals(new HashSet<>(singleModeAnalysis.getFlowAfter(unit).toList()),
+                            new HashSet<>(multiModeAnalysis.getFlowAfter(unit, mode).toList()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBitNullFlowSetOperations() {
+        SootMethod methodC = Scene.v().getSootClass(NPAMain.clsName).getMethodByName("methodC");
+        Body body = methodC.retrieveActiveBody();
+        LocalIndex localIndex = new LocalIndex(body.getUnits());
+        assertEquals(body.getLocalCount(), localIndex.size());
+        Local[] locals = body.getLocals().toArray(new Local[0]);
+
+        BitNullFlowSet first = new BitNullFlowSet(localIndex);
+        BitNullFlowSet second = new BitNullFlowSet(localIndex);
+        first.add(locals[0]);
+        first.add(locals[1]);
+        second.add(locals[1]);
+        second.add(locals[2]);
+
+        BitNullFlowSet result = first.emptySet();
+        first.union(second, result);
+        assertEquals(3, result.size());
+        first.intersection(second, result);
+        assertEquals(1, result.size());
+        assertTrue(result.contains(locals[1]));
+        first.difference(second, result);
+        assertEquals(1, result.size());
+        assertTrue(result.contains(locals[0]));
+
+        BitNullFlowSet copy = first.emptySet();
+        first.copy(copy);
+        assertEquals(first, copy);
+        copy.remove(locals[0]);
+        assertNotEquals(first, copy);
+        copy.complement();
+        assertEquals(localIndex.size() - 1, copy.size());
+        assertFalse(copy.contains(locals[1]));
+    }
+}
@@ -0,0 +1,44 @@
+package dev.navids.soottutorial.intraanalysis.npanalysis;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import soot.Body;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class NullPointerCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testUnchangedBodiesAreReused() throws IOException {
+        File cacheFile = new File(temporaryFolder.getRoot(), "npa.cache");
+        NPAMain.setupSoot();
+        SootClass mainClass = Scene.v().getSootClass(NPAMain.clsName);
+        NullPointerCache firstRun = new NullPointerCache(cacheFile);
+        for (SootMethod sm : mainClass.getMethods())
+            assertEquals(NPAMain.findNullPointerUsages(sm.retrieveActiveBody()), firstRun.findNullPointerUsages(sm.retrieveActiveBody()));
+        assertEquals(0, firstRun.getHits());
+        assertEquals(mainClass.getMethodCount(), firstRun.getMisses());
+        firstRun.save();
+
+        // Reload the classes, as a new run would do, and change one of the bodies
+        NPAMain.setupSoot();
+        mainClass = Scene.v().getSootClass(NPAMain.clsName);
+        Body changedBody = mainClass.getMethodByName("methodC").retrieveActiveBody();
+        changedBody.getUnits().removeFirst();
+        NullPointerCache secondRun = new NullPointerCache(cacheFile);
+        for (SootMethod sm : mainClass.getMethods())
+            assertEquals(NPAMain.findNullPointerUsages(sm.retrieveActiveBody()), secondRun.findNullPointerUsages(sm.retrieveActiveBody()));
+        assertEquals(mainClass.getMethodCount() - 1, secondRun.getHits());
+        assertEquals(1, secondRun.getMisses());
+    }
+}